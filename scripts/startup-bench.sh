@@ -0,0 +1,150 @@
+#!/usr/bin/env bash
+#
+# Startup of the server: time from the launch of the process to the first accepted connection,
+# that is the first CONNECT answered by WELCOME.
+#
+#   scripts/startup-bench.sh bench [runs] [server options]
+#       Measure each build found in target/: the shaded jar, the jar with its AppCDS archive
+#       and the native executable. The times are the median and the best of the runs (default: 10).
+#
+#   scripts/startup-bench.sh train <jar> <archive> [server options]
+#       Record the AppCDS archive of a jar while the server starts and plays one match against a bot.
+#       Used by the appcds profile of Maven and by the Dockerfile.
+#
+# PORT selects the port of the server (default: 16433), JAVA the java executable (default: java of JAVA_HOME).
+
+set -euo pipefail
+
+PORT="${PORT:-16433}"
+if [[ -n "${JAVA:-}" ]]; then
+    :
+elif [[ -n "${JAVA_HOME:-}" ]]; then
+    JAVA="$JAVA_HOME/bin/java"
+else
+    JAVA=java
+fi
+TARGET="$(cd "$(dirname "$0")/.." && pwd)/target"
+
+now_ms() {
+    date +%s%3N
+}
+
+# Send a line to the server connected on descriptor 3
+say() {
+    printf '%s\n' "$1" >&3
+}
+
+# Read the lines of the server until one starts with the given text
+expect() {
+    local line
+    while read -r -t 5 line <&3; do
+        [[ "$line" == "$1"* ]] && return 0
+    done
+    echo "[BENCH] No $1 from the server" >&2
+    return 1
+}
+
+# Open a session, fails while the server does not accept connections yet
+probe() {
+    exec 3<>"/dev/tcp/127.0.0.1/$PORT" || return 1
+    say "CONNECT bench$1"
+    if ! expect "WELCOME"; then
+        exec 3<&-
+        return 1
+    fi
+}
+
+# Start a server and wait for its first accepted connection, the time goes in $STARTUP_MS.
+# The connection stays open on descriptor 3 and the server runs as $SERVER_PID.
+start_server() {
+    local start attempt=0
+    start=$(now_ms)
+    "$@" -p "$PORT" > /dev/null 2>&1 &
+    SERVER_PID=$!
+    until probe "$attempt" 2> /dev/null; do
+        if ! kill -0 "$SERVER_PID" 2> /dev/null; then
+            echo "[BENCH] Server exited during startup: $*" >&2
+            return 1
+        fi
+        attempt=$((attempt + 1))
+        sleep 0.005
+    done
+    STARTUP_MS=$(($(now_ms) - start))
+}
+
+stop_server() {
+    exec 3<&- || true
+    [[ -n "${SERVER_PID:-}" ]] || return 0
+    kill -TERM "$SERVER_PID" 2> /dev/null || true
+    wait "$SERVER_PID" 2> /dev/null || true
+    SERVER_PID=
+}
+trap stop_server EXIT
+
+# Median and best of the startup times of a command
+measure() {
+    local name="$1" runs="$2"
+    shift 2
+    local times=() i
+    for ((i = 0; i < runs; i++)); do
+        start_server "$@"
+        times+=("$STARTUP_MS")
+        stop_server
+    done
+    local sorted
+    sorted=($(printf '%s\n' "${times[@]}" | sort -n))
+    printf '%-8s median %5d ms   best %5d ms   (%d runs)\n' "$name" "${sorted[$((runs / 2))]}" "${sorted[0]}" "$runs"
+}
+
+train() {
+    local jar="$1" archive="$2"
+    shift 2
+    rm -f "$archive"
+    echo "[BENCH] Recording $archive"
+    start_server "$JAVA" -XX:ArchiveClassesAtExit="$archive" -jar "$jar" server -b 1 "$@"
+    say "CHALLENGE Bot1"
+    expect "CHALLENGE_ACCEPTED"
+    say "PLAY 1"
+    expect "ROUND_END"
+    say "SURRENDER"
+    expect "MATCH_END"
+    say "DISCONNECT"
+    expect "OK"
+    stop_server
+    [[ -f "$archive" ]] || { echo "[BENCH] No archive written" >&2; exit 1; }
+}
+
+bench() {
+    local runs="${1:-10}"
+    [[ $# -gt 0 ]] && shift
+    local jar="$TARGET/card-jitsus-1.0-SNAPSHOT.jar" archive="$TARGET/card-jitsus.jsa" native="$TARGET/card-jitsus"
+
+    [[ -f "$jar" ]] || { echo "[BENCH] Build the jar first: mvn package" >&2; exit 1; }
+    measure "jar" "$runs" "$JAVA" -Xshare:off -jar "$jar" server "$@"
+    measure "jar+cds" "$runs" "$JAVA" -jar "$jar" server "$@"
+    if [[ -f "$archive" ]]; then
+        measure "appcds" "$runs" "$JAVA" -XX:SharedArchiveFile="$archive" -jar "$jar" server "$@"
+    else
+        echo "appcds   skipped, build it with: mvn -Pappcds package"
+    fi
+    if [[ -x "$native" ]]; then
+        measure "native" "$runs" "$native" server "$@"
+    else
+        echo "native   skipped, build it with: mvn -Pnative package"
+    fi
+}
+
+case "${1:-}" in
+    train)
+        shift
+        train "$@"
+        ;;
+    bench)
+        shift
+        bench "$@"
+        ;;
+    *)
+        sed -n '3,14p' "$0" | sed 's/^# \{0,1\}//'
+        exit 1
+        ;;
+esac
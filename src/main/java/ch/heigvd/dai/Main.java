@@ -2,15 +2,19 @@ package ch.heigvd.dai;
 
 import ch.heigvd.dai.commands.Root;
 import java.io.File;
+import java.security.CodeSource;
 import picocli.CommandLine;
 
 public class Main {
 
   public static void main(String[] args) {
     // Define command name - source: https://stackoverflow.com/a/11159435
+    // A native image has no code source, it is named after its executable
+    CodeSource codeSource = Main.class.getProtectionDomain().getCodeSource();
     String jarFilename =
-        new File(Main.class.getProtectionDomain().getCodeSource().getLocation().getPath())
-            .getName();
+        codeSource == null
+            ? "card-jitsus"
+            : new File(codeSource.getLocation().getPath()).getName();
 
     // Create root command
     Root root = new Root();
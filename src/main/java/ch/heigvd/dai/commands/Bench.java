@@ -0,0 +1,217 @@
+package ch.heigvd.dai.commands;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import ch.heigvd.dai.jitsus.bench.Baseline;
+import ch.heigvd.dai.jitsus.bench.BenchStats;
+import ch.heigvd.dai.jitsus.bench.ChurnClient;
+import ch.heigvd.dai.jitsus.bench.LatencyHistogram;
+import ch.heigvd.dai.jitsus.bench.MatchClient;
+import ch.heigvd.dai.jitsus.bench.ServerProbe;
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "bench", description = "Run a server and scripted clients in this process, and check its throughput and latency against a baseline.")
+public class Bench implements Callable<Integer> {
+    private static final long SERVER_START_TIMEOUT_MS = 120_000;
+    private static final long RUN_TIMEOUT_MS = 300_000;
+
+    @CommandLine.Option(
+            names = {"-n", "--matches"},
+            description = "Number of matches played at once, by two clients each (default: ${DEFAULT-VALUE}).",
+            defaultValue = "200")
+    private int matches;
+
+    @CommandLine.Option(
+            names = {"--leave-share"},
+            description = "Share of the matches a player leaves during, between 0 and 1 (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0.1")
+    private double leaveShare;
+
+    @CommandLine.Option(
+            names = {"--churn"},
+            description = "Number of clients connecting, listing the players and leaving during the matches (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    private int churn;
+
+    @CommandLine.Option(
+            names = {"--churn-cycles"},
+            description = "Connections made by each churning client (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10")
+    private int churnCycles;
+
+    @CommandLine.Option(
+            names = {"-s", "--seed"},
+            description = "Seed of the clients: their cards, chat and departures (default: ${DEFAULT-VALUE}).",
+            defaultValue = "42")
+    private long seed;
+
+    @CommandLine.Option(
+            names = {"--warmup"},
+            description = "Matches the server plays in memory before the clients connect (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    private int warmup;
+
+    @CommandLine.Option(
+            names = {"--baseline"},
+            description = "File of the latencies to compare with, written with --record (default: ${DEFAULT-VALUE}).",
+            defaultValue = "perf-baseline.properties")
+    private Path baseline;
+
+    @CommandLine.Option(
+            names = {"--record"},
+            arity = "0..1",
+            description = "Write the results of this run as the new baseline, a run without baseline fails otherwise.")
+    private boolean record;
+
+    @CommandLine.Option(
+            names = {"--threshold"},
+            description = "Percent a p99 latency may grow over the baseline before the run fails (default: ${DEFAULT-VALUE}).",
+            defaultValue = "50")
+    private double threshold;
+
+    @CommandLine.Option(
+            names = {"--slack"},
+            description = "Microseconds a p99 latency may grow in any case, against the noise of short latencies (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    private long slackMicros;
+
+    @CommandLine.Option(
+            names = {"--verbose"},
+            description = "Print the messages of the server.")
+    private boolean verbose;
+
+    @Override
+    public Integer call() {
+        if (matches <= 0 || churn < 0 || churnCycles < 0 || leaveShare < 0 || leaveShare > 1) {
+            System.err.println("[BENCH] The numbers of matches and clients must be positive, the leave share between 0 and 1.");
+            return -1;
+        }
+        PrintStream report = System.out;
+        int clients = 2 * matches + churn;
+        report.println("[BENCH] " + matches + " matches, " + churn + " churning clients, seed " + seed);
+
+        Server server = new Server();
+        new CommandLine(server).parseArgs(
+                "-H", "127.0.0.1", "-p", "0",
+                "-m", String.valueOf(clients + 1), "-q", String.valueOf(clients + 1),
+                // Nothing held back: the run measures the server, not its protections
+                "--latency-target", "3600000", "--rate", "0", "--rate-getplayers", "0", "--rate-challenge", "0",
+                "--rate-match-msg", "0", "--rate-strikes", "0", "--heartbeat", "3600000", "--grace", "0",
+                // SIGTERM or Ctrl-C stops the bench at once
+                "--drain-timeout", "0",
+                "--hint-precompute", "0", "--warmup", String.valueOf(warmup));
+        if (!verbose)
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread serverThread = new Thread(server::call, "bench-server");
+        serverThread.start();
+
+        BenchStats stats = new BenchStats();
+        List<MatchClient.Pairing> pairings = new ArrayList<>();
+        long wall;
+        try {
+            int port = server.awaitPort(SERVER_START_TIMEOUT_MS);
+            if (port < 0) {
+                report.println("[BENCH] The server did not start.");
+                return -1;
+            }
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+
+            // Everything the clients do comes from the seed, in the same order at each run
+            Random random = new Random(seed);
+            List<Callable<BenchStats>> tasks = new ArrayList<>();
+            for (int i = 0; i < matches; i++) {
+                int leaver = random.nextDouble() < leaveShare ? random.nextInt(2) : -1;
+                MatchClient.Pairing pairing = new MatchClient.Pairing("a" + i, "b" + i, leaver, 1 + random.nextInt(5));
+                pairings.add(pairing);
+                tasks.add(new MatchClient(address, pairing, 0, random.nextLong()));
+                tasks.add(new MatchClient(address, pairing, 1, random.nextLong()));
+            }
+            for (int i = 0; i < churn; i++)
+                tasks.add(new ChurnClient(address, "c" + i, churnCycles));
+
+            long start = System.nanoTime();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<BenchStats>> done = executor.invokeAll(tasks, RUN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                for (Future<BenchStats> future : done) {
+                    try {
+                        stats.merge(future.get());
+                    } catch (CancellationException | ExecutionException e) {
+                        stats.fail("client not done in " + RUN_TIMEOUT_MS / 1000 + " s");
+                    }
+                }
+            }
+            wall = System.nanoTime() - start;
+
+            for (MatchClient.Pairing pairing : pairings) {
+                String mismatch = pairing.check();
+                if (mismatch != null)
+                    stats.fail(mismatch);
+            }
+            try {
+                String leftover = ServerProbe.leftovers(address);
+                if (leftover != null)
+                    stats.fail(leftover);
+            } catch (IOException e) {
+                stats.fail("server not reachable after the run: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            report.println("[BENCH] Interrupted.");
+            return -1;
+        } finally {
+            server.stop();
+            try {
+                serverThread.join(10_000);
+            } catch (InterruptedException ignored) {
+            }
+            System.setOut(report);
+        }
+
+        long played = pairings.stream().filter(MatchClient.Pairing::isPlayed).count();
+        double seconds = wall / 1e9;
+        System.out.printf(Locale.ROOT, "[BENCH] %d matches played to the end, %d left early, in %.3f s%n",
+                played, matches - played, seconds);
+        System.out.printf(Locale.ROOT, "[BENCH] Throughput: %.1f matches per second, %.0f commands per second%n",
+                played / seconds, stats.getCommands() / seconds);
+        System.out.println("[BENCH] Latency in us     count       p50       p90       p99       max");
+        for (BenchStats.Operation operation : BenchStats.Operation.values()) {
+            LatencyHistogram h = stats.latency(operation);
+            System.out.printf(Locale.ROOT, "  %-12s %10d %9d %9d %9d %9d%n", operation, h.getCount(),
+                    h.percentile(50) / 1000, h.percentile(90) / 1000, h.percentile(99) / 1000, h.getMaxNanos() / 1000);
+        }
+
+        boolean failed = stats.getFailureCount() > 0;
+        if (failed) {
+            System.out.println("[BENCH] " + stats.getFailureCount() + " failures, the first ones:");
+            for (String failure : stats.getFailures())
+                System.out.println("  " + failure);
+        }
+        try {
+            Baseline kept = Baseline.load(baseline);
+            if (kept == null && !record) {
+                // Nothing to compare with: passing would hide any regression
+                System.out.println("[BENCH] No baseline in " + baseline + ", record one on this machine with --record");
+                failed = true;
+            } else if (kept != null) {
+                List<String> regressions = kept.regressions(stats, threshold, slackMicros);
+                for (String regression : regressions)
+                    System.out.println("[BENCH] Regression: " + regression);
+                System.out.printf(Locale.ROOT, "[BENCH] Baseline %s: %.1f matches per second%n",
+                        baseline, kept.getMatchesPerSecond());
+                failed |= !regressions.isEmpty();
+            }
+            // A failed run is no baseline
+            if (!failed && record) {
+                Baseline.write(baseline, stats, played / seconds);
+                System.out.println("[BENCH] Baseline written to " + baseline);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[BENCH] Cannot use the baseline " + baseline + ": " + e.getMessage());
+            failed = true;
+        }
+        System.out.println(failed ? "[BENCH] FAILED" : "[BENCH] PASSED");
+        return failed ? 1 : 0;
+    }
+}
@@ -5,21 +5,33 @@
 package ch.heigvd.dai.commands;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 import picocli.CommandLine;
 
+/**
+ * Client of the game, running on a single loop.
+ *
+ * The loop waits on a selector for the socket, and takes the commands in between: typed on the console
+ * or read from a script, they are read by a helper thread. The connection is never blocking,
+ * so the messages of the server are handled while the user types and while a script waits.
+ **/
 @CommandLine.Command(name = "client", description = "Start the client part of the network game.")
 public class Client implements Callable<Integer> {
 
@@ -40,128 +52,483 @@ public class Client implements Callable<Integer> {
         description = "Username (si non fourni, sera demandé).")
     protected String username;
 
-    private static AtomicBoolean disconnect = new AtomicBoolean(false);
+    @CommandLine.Option(
+        names = {"--script"},
+        description = "Send the commands of a file, - for the standard input, without printing every message of the server.")
+    protected String script;
+
+    @CommandLine.Option(
+        names = {"--verbose"},
+        description = "With --script, print every message of the server.")
+    protected boolean verbose;
+
+    // Time the loop waits on the socket before looking at the commands again
+    private static final long POLL_MS = 20;
+    // Attempts to resume the session after losing the connection, or to connect again after a drain,
+    // one more second apart each time
+    private static final int RESUME_ATTEMPTS = 5;
+    private static final long WAIT_TIMEOUT_MS = 10_000;
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private enum Phase {
+        CONNECTING,
+        READY,
+        RESUMING,
+        // Sent away by a draining server, connecting again under the same name
+        RECONNECTING,
+        CLOSED
+    }
+
+    private Selector selector;
+    private SocketChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+    private Phase phase = Phase.CONNECTING;
+    private int exitCode = 0;
+    private boolean disconnecting = false;
+    private long closeDeadline = 0;
+
+    // Session given by the server, and the number of lines received in it
+    private String sessionToken = null;
+    private long linesReceived = 0;
+    private int resumeAttempt = 0;
+    private long resumeAt = 0;
+
+    // Commands, typed or read from the script, queued by the helper thread
+    private final ConcurrentLinkedDeque<String> inputLines = new ConcurrentLinkedDeque<>();
+    private volatile boolean inputEnded = false;
+
+    // WAIT of the script, with the lines received since the last command sent
+    private String waitingFor = null;
+    private long waitDeadline = 0;
+    private final List<String> sinceLastCommand = new ArrayList<>();
+
     @Override
     public Integer call() {
-
-        // Initialise buffers to communicate with socket
-        try (Scanner scanner = new Scanner(System.in, StandardCharsets.UTF_8);
-             Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-            
+        if (script != null && username == null) {
+            System.err.println("[CLIENT] A username is required with --script.");
+            return -1;
+        }
+        try (Selector s = Selector.open()) {
+            selector = s;
+            // The commands are read by their own thread, the console as well as a script:
+            // available() cannot tell the end of a pipe from a pipe with nothing yet, and readLine() blocks
+            BufferedReader input = script == null || script.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(Path.of(script), StandardCharsets.UTF_8);
+            Thread reader = new Thread(() -> readInput(input), "input");
+            reader.setDaemon(true);
+            reader.start();
+            open();
             System.out.println("[CLIENT] Connected to " + host + ":" + port);
 
-            // Get and validate username
-            if(getUsername(scanner,in, out) < 0) return -1;
-            
-            disconnect.set(false);
-            // thread to lisen to server
-            Thread listener = new Thread(() -> {
-                try {
-                    String serverLine;
-                    while ((serverLine = in.readLine()) != null) {
-                        System.out.println("> " + serverLine);
-                        if(serverLine.equals("SERVER_SHUTDOWN")){
-                            disconnect.set(true);
-                            return;
-                        }
-                        
-                    }
-                } catch (IOException e) {
-                    System.err.println("[CLIENT] Error reading from server: " + e.getMessage());
-                }
-            }, "server-listener");
-            listener.setDaemon(true);
-            listener.start();
-
-            
-            // User command handeling
-            while (!disconnect.get()) {
-                if (!scanner.hasNextLine()) break;
-                String line = scanner.nextLine().trim();
-                if (line.isEmpty()) continue;
-
-                String[] tokens = line.split(" ");
-                switch (tokens[0].toUpperCase()) {
-                  case "HELP" :
-                    printFile("Documents/Message/HELP.txt");
-                    break;
-                  case "RULES" :
-                    printFile("Documents/Message/RULES.txt");
-                    break;
-                  case "DISCONNECT" :
-                    disconnect.set(true);
-                  default:
-                    // Transfer to server for handling
-                    out.write(line + "\n");
-                    out.flush();
-                }
+            while (phase != Phase.CLOSED) {
+                selector.select(POLL_MS);
+                for (SelectionKey key : selector.selectedKeys())
+                    handle(key);
+                selector.selectedKeys().clear();
+                pollCommands();
+                checkTimers();
             }
-
-            // Quick wait before closure
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException ignored) {
-                Thread.currentThread().interrupt();
-            }
-        } catch (Exception e) {
+        } catch (IOException e) {
             System.err.println("[CLIENT] Error: " + e.getMessage());
             return -1;
+        } finally {
+            close();
         }
         System.out.println("[CLIENT] Exiting.");
-        return 0;
+        return exitCode;
+    }
+
+    /* Connection */
+
+    private void open() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        partialLine.reset();
+        writes.clear();
+        if (channel.connect(new InetSocketAddress(host, port))) {
+            channel.register(selector, SelectionKey.OP_READ);
+            connected();
+        } else {
+            channel.register(selector, SelectionKey.OP_CONNECT);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+            if (key.isValid() && key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                flush();
+        } catch (IOException e) {
+            connectionLost(e.getMessage());
+        }
+    }
+
+    private void connected() throws IOException {
+        if (phase == Phase.RESUMING) {
+            send("RESUME " + sessionToken + " " + linesReceived);
+        } else if (phase == Phase.RECONNECTING) {
+            send("CONNECT " + username);
+        } else if (username != null) {
+            send("CONNECT " + username);
+        } else {
+            System.out.print("Username (Max 12 char): ");
+            System.out.flush();
+        }
+    }
+
+    private void read() throws IOException {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            connectionLost("closed by server");
+            return;
+        }
+        // UTF-8 never uses the byte of '\n' inside a character, lines can be cut on bytes
+        byte[] data = readBuffer.array();
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            if (data[i] == '\n') {
+                partialLine.write(data, start, i - start);
+                String line = partialLine.toString(StandardCharsets.UTF_8);
+                partialLine.reset();
+                start = i + 1;
+                serverLine(line);
+                if (channel == null) return;
+            }
+        }
+        partialLine.write(data, start, n - start);
+    }
+
+    private void send(String line) throws IOException {
+        writes.addLast(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        flush();
+    }
+
+    private void flush() throws IOException {
+        while (!writes.isEmpty()) {
+            ByteBuffer buffer = writes.peekFirst();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) break;
+            writes.pollFirst();
+        }
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null && key.isValid())
+            key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    /**
+     * A lost connection is resumed when the server gave a session, unless the client is leaving.
+     **/
+    private void connectionLost(String reason) {
+        close();
+        if (disconnecting || phase == Phase.CLOSED) {
+            phase = Phase.CLOSED;
+            return;
+        }
+        if (phase == Phase.RECONNECTING) {
+            if (resumeAttempt >= RESUME_ATTEMPTS) {
+                System.out.println("[CLIENT] Cannot connect again: " + reason);
+                exitCode = -1;
+                phase = Phase.CLOSED;
+                return;
+            }
+            resumeAttempt++;
+            resumeAt = System.currentTimeMillis() + resumeAttempt * 1000L;
+            return;
+        }
+        if (sessionToken == null || resumeAttempt >= RESUME_ATTEMPTS) {
+            System.out.println("[CLIENT] Connection lost: " + reason);
+            exitCode = -1;
+            phase = Phase.CLOSED;
+            return;
+        }
+        if (phase != Phase.RESUMING)
+            System.out.println("[CLIENT] Connection lost, trying to resume the session...");
+        phase = Phase.RESUMING;
+        resumeAttempt++;
+        resumeAt = System.currentTimeMillis() + resumeAttempt * 1000L;
+    }
+
+    /**
+     * The server is draining before it stops: its session is over, the client connects again
+     * under the same name, to the server taking its place.
+     **/
+    private void drained() {
+        close();
+        sessionToken = null;
+        linesReceived = 0;
+        if (username == null) {
+            System.out.println("[CLIENT] Server draining, connect to another one.");
+            exitCode = -1;
+            phase = Phase.CLOSED;
+            return;
+        }
+        System.out.println("[CLIENT] Server draining, connecting again...");
+        phase = Phase.RECONNECTING;
+        resumeAttempt = 1;
+        resumeAt = System.currentTimeMillis() + 1000L;
+    }
+
+    /* Messages of the server */
+
+    private void serverLine(String line) throws IOException {
+        boolean admission = line.startsWith("QUEUED") || line.equals("ADMITTED") || line.startsWith("REJECT");
+
+        if (phase == Phase.RESUMING) {
+            // Until RESUMED, the lines are not part of the session
+            if (line.startsWith("PING")) {
+                send("PONG" + line.substring(4));
+            } else if (line.equals("RESUMED")) {
+                phase = Phase.READY;
+                resumeAttempt = 0;
+                System.out.println("[CLIENT] Session resumed.");
+            } else if (!admission) {
+                System.err.println("[CLIENT] Session not resumed: " + line);
+                exitCode = -1;
+                phase = Phase.CLOSED;
+            }
+            return;
+        }
+
+        boolean ping = line.startsWith("PING");
+        if (!admission && !ping)
+            linesReceived++;
+        if (ping) {
+            send("PONG" + line.substring(4));
+            return;
+        }
+        if (line.startsWith("SESSION ")) {
+            sessionToken = line.substring(8);
+            return;
+        }
+
+        if (phase == Phase.CONNECTING || phase == Phase.RECONNECTING) {
+            connectionAnswer(line);
+            return;
+        }
+
+        if (script == null || verbose) {
+            System.out.println("> " + line);
+        } else if (line.startsWith("ERROR") || line.equals("RATE_LIMITED") || line.equals("INVALID_COMMAND")) {
+            System.err.println("> " + line);
+        }
+        if (line.equals("SERVER_SHUTDOWN")) {
+            phase = Phase.CLOSED;
+            return;
+        }
+        if (line.equals("SERVER_DRAINING")) {
+            drained();
+            return;
+        }
+
+        if (waitingFor != null && line.startsWith(waitingFor)) {
+            waitDone(line);
+        } else {
+            sinceLastCommand.add(line);
+        }
     }
 
     /**
-     * Asks payer for username and check if valid until one is accepted.
-     *
-     * @return Integer for execution status.
+     * Answer of the server to CONNECT, maybe after waiting in its admission queue.
      **/
-    private int getUsername(Scanner scanner, BufferedReader in, BufferedWriter out) {
-        boolean gotUserName = false;
-        while(!gotUserName) {
-            if (username == null || username.trim().isEmpty() || username.length() > 12) {
+    private void connectionAnswer(String line) {
+        if (line.startsWith("QUEUED")) {
+            String[] queued = line.split(" ");
+            if (queued.length == 3)
+                System.out.println("[CLIENT] Server full, position " + queued[1] + " in queue"
+                        + (queued[2].equals("-1") ? "" : ", about " + queued[2] + " s to wait"));
+        } else if (line.startsWith("REJECT")) {
+            System.err.println("[CLIENT] Connection refused: " + line);
+            exitCode = -1;
+            phase = Phase.CLOSED;
+        } else if (line.equals("SERVER_DRAINING")) {
+            drained();
+        } else if (line.equals("OK")) {
+            if (phase == Phase.RECONNECTING)
+                System.out.println("[CLIENT] Connected again as " + username + ".");
+            phase = Phase.READY;
+            resumeAttempt = 0;
+        } else if (line.startsWith("ERROR")) {
+            if (line.equals("ERROR Name In Use"))
+                System.out.println("Username '" + username + "' is not available. Please choose another one.");
+            else
+                System.out.println("Username '" + username + "' refused: " + line.substring(6));
+            username = null;
+            phase = Phase.CONNECTING;
+            if (script != null) {
+                exitCode = -1;
+                phase = Phase.CLOSED;
+            } else {
                 System.out.print("Username (Max 12 char): ");
-                if (scanner.hasNextLine()) {
-                    username = scanner.nextLine().trim();
-                } else {
-                    System.err.println("[CLIENT] No username provided.");
-                    return -1;
+                System.out.flush();
+            }
+        }
+    }
+
+    /* Commands */
+
+    /**
+     * Take the commands available without blocking, typed or read from the script.
+     * A script waits for the session before its first command, and for the line of a WAIT before the next one.
+     * The console waits for the session once the username is sent, the lines typed or redirected before are kept.
+     **/
+    private void pollCommands() throws IOException {
+        while (phase != Phase.CLOSED && !disconnecting) {
+            if (script != null ? phase != Phase.READY || waitingFor != null
+                    : phase == Phase.CONNECTING && username != null)
+                return;
+            String line = inputLines.pollFirst();
+            if (line == null) break;
+            command(line.trim());
+        }
+
+        // End of the script or of the console: leave the server if the commands did not
+        if (!inputEnded || !inputLines.isEmpty() || disconnecting)
+            return;
+        if (phase == Phase.READY && waitingFor == null) {
+            disconnecting = true;
+            closeDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+            send("DISCONNECT");
+        } else if (phase == Phase.CONNECTING && username == null) {
+            // The console ended before a username was typed
+            phase = Phase.CLOSED;
+        }
+    }
+
+    /**
+     * Read the commands line by line, on the helper thread. The lines wait in the queue until the loop takes them.
+     **/
+    private void readInput(BufferedReader reader) {
+        try (reader) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                inputLines.addLast(line);
+                selector.wakeup();
+            }
+        } catch (IOException e) {
+            System.err.println("[CLIENT] Cannot read the commands: " + e.getMessage());
+        } finally {
+            inputEnded = true;
+            selector.wakeup();
+        }
+    }
+
+    private void command(String line) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) return;
+
+        if (phase == Phase.CONNECTING) {
+            // Typed before the session is open: it is the username
+            if (username == null && channel != null && channel.isConnected()) {
+                if (line.length() > 12 || line.contains(" ")) {
+                    System.out.print("Username (Max 12 char): ");
+                    System.out.flush();
+                    return;
                 }
+                username = line;
+                send("CONNECT " + username);
             }
+            return;
+        }
+        if (phase == Phase.RESUMING || phase == Phase.RECONNECTING) {
+            System.out.println("[CLIENT] Not connected, command ignored: " + line);
+            return;
+        }
 
-            try {
-                // Send CONNECT command to server to check username availability
-                out.write("CONNECT " + username + "\n");
-                out.flush();
-
-                String serverResponse = in.readLine();
-                if (serverResponse != null && serverResponse.equals("OK")) {
-                    gotUserName = true;
-                } else if (serverResponse.equals("ERROR Name In Use")){
-                    System.out.println("Username '" + username + "' is not available. Please choose another one.");
-                    username = null; // Reset username to prompt again
+        String[] tokens = line.split(" ");
+        switch (tokens[0].toUpperCase()) {
+          case "HELP" :
+            System.out.println(Texts.HELP);
+            break;
+          case "RULES" :
+            System.out.println(Texts.RULES);
+            break;
+          case "WAIT" :
+            // Script only: wait for a line of the server starting with the given text
+            if (tokens.length < 2) break;
+            long timeout = WAIT_TIMEOUT_MS;
+            if (tokens.length > 2) {
+                try {
+                    timeout = Long.parseLong(tokens[2]);
+                } catch (NumberFormatException e) {
+                    System.err.println("[CLIENT] Invalid timeout, line skipped: " + line);
+                    break;
+                }
+            }
+            waitingFor = tokens[1];
+            waitDeadline = System.currentTimeMillis() + timeout;
+            for (String received : sinceLastCommand) {
+                if (received.startsWith(waitingFor)) {
+                    waitDone(received);
+                    break;
                 }
+            }
+            break;
+          case "DISCONNECT" :
+            disconnecting = true;
+            closeDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+          default:
+            // Transfer to server for handling
+            sinceLastCommand.clear();
+            send(line);
+        }
+    }
+
+    private void waitDone(String line) {
+        if (script != null && !verbose)
+            System.out.println("> " + line);
+        waitingFor = null;
+        sinceLastCommand.clear();
+    }
+
+    private void checkTimers() throws IOException {
+        long now = System.currentTimeMillis();
+        if (waitingFor != null && now > waitDeadline) {
+            System.err.println("[CLIENT] Timeout waiting for " + waitingFor);
+            exitCode = -1;
+            phase = Phase.CLOSED;
+        }
+        if (disconnecting && now > closeDeadline)
+            phase = Phase.CLOSED;
+        if ((phase == Phase.RESUMING || phase == Phase.RECONNECTING) && channel == null && now >= resumeAt) {
+            try {
+                open();
             } catch (IOException e) {
-                System.err.println("[CLIENT] Error reading from server: " + e.getMessage());
-                return -1;
+                connectionLost(e.getMessage());
             }
         }
-        return 0;
     }
-    
+
     /**
-     * Prints the content of a file in System.out.
+     * Help and rules, packaged with the application and read once.
      **/
-    private static void printFile(String filePath) {
-        try {
-            List<String> lines = Files.readAllLines(Path.of(filePath));
-            for (String line : lines) {
-                System.out.println(line);
+    private static final class Texts {
+        static final String HELP = load("/Message/HELP.txt");
+        static final String RULES = load("/Message/RULES.txt");
+
+        private static String load(String resource) {
+            try (InputStream stream = Client.class.getResourceAsStream(resource)) {
+                if (stream == null) return "Erreur lors de la lecture du fichier : " + resource + " introuvable";
+                return new String(stream.readAllBytes(), StandardCharsets.UTF_8).stripTrailing();
+            } catch (IOException e) {
+                return "Erreur lors de la lecture du fichier : " + e.getMessage();
             }
-        } catch (IOException e) {
-            System.err.println("Erreur lors de la lecture du fichier : " + e.getMessage());
         }
     }
 }
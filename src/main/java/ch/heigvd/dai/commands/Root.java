@@ -8,6 +8,8 @@ import picocli.CommandLine;
     subcommands = {
       Client.class,
       Server.class,
+      Simulate.class,
+      Bench.class,
     },
     scope = CommandLine.ScopeType.INHERIT,
     mixinStandardHelpOptions = true)
@@ -7,17 +7,40 @@ import java.util.*;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 
 // Concurrency
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import ch.heigvd.dai.jitsus.bot.BotPlayer;
+import ch.heigvd.dai.jitsus.bot.BotStrategy;
+import ch.heigvd.dai.jitsus.cluster.ClusterNode;
+import ch.heigvd.dai.jitsus.game.GameManager;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.game.Solver;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
 import ch.heigvd.dai.jitsus.protocol.ClientHandler;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+import ch.heigvd.dai.jitsus.replica.ReplicaState;
+import ch.heigvd.dai.jitsus.replica.Replicator;
+import ch.heigvd.dai.jitsus.replica.Standby;
+import ch.heigvd.dai.jitsus.server.AdmissionQueue;
+import ch.heigvd.dai.jitsus.server.BufferPool;
+import ch.heigvd.dai.jitsus.server.Drain;
+import ch.heigvd.dai.jitsus.server.Heartbeat;
+import ch.heigvd.dai.jitsus.server.RateLimits;
+import ch.heigvd.dai.jitsus.server.ServerContext;
+import ch.heigvd.dai.jitsus.server.ServerMetrics;
+import ch.heigvd.dai.jitsus.server.Sessions;
+import ch.heigvd.dai.jitsus.server.Warmup;
+import ch.heigvd.dai.jitsus.tournament.Tournaments;
 import picocli.CommandLine;
 
 @CommandLine.Command(name = "server", description = "Start the server part of the network game.")
 public class Server implements Callable<Integer> {
+    // Time between two looks at the running matches and idle players during a drain
+    private static final long DRAIN_POLL_MS = 200;
+    // Time left to the shutdown of the server once a drain asked by the process is over
+    private static final long SHUTDOWN_MARGIN_MS = 10_000;
 
     @CommandLine.Option(
             names = {"-p", "--port"},
@@ -31,61 +54,440 @@ public class Server implements Callable<Integer> {
             defaultValue = "10")
     private int maxClients;
 
+    @CommandLine.Option(
+            names = {"-q", "--queue-size"},
+            description = "Number of connections waiting for a free slot before refusing new ones (default: ${DEFAULT-VALUE}).",
+            defaultValue = "100")
+    private int queueSize;
+
+    @CommandLine.Option(
+            names = {"--latency-target"},
+            description = "Command latency in ms over which fewer clients are admitted (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    private long latencyTarget;
+
+    @CommandLine.Option(
+            names = {"--rate"},
+            description = "Commands per second allowed to each client, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    private double rate;
+
+    @CommandLine.Option(
+            names = {"--burst"},
+            description = "Commands a client can send in a row above the rate (default: ${DEFAULT-VALUE}).",
+            defaultValue = "40")
+    private int burst;
+
+    @CommandLine.Option(
+            names = {"--rate-getplayers"},
+            description = "GETPLAYERS per second allowed to each client, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1")
+    private double rateGetPlayers;
+
+    @CommandLine.Option(
+            names = {"--rate-challenge"},
+            description = "CHALLENGE per second allowed to each client, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1")
+    private double rateChallenge;
+
+    @CommandLine.Option(
+            names = {"--rate-match-msg"},
+            description = "MATCH_MSG per second allowed to each client, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "2")
+    private double rateMatchMsg;
+
+    @CommandLine.Option(
+            names = {"--rate-strikes"},
+            description = "Throttled commands in 10 seconds before a client is disconnected, 0 to never disconnect (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    private int rateStrikes;
+
+    @CommandLine.Option(
+            names = {"--heartbeat"},
+            description = "Time in ms between two PING sent to each client (default: ${DEFAULT-VALUE}).",
+            defaultValue = "5000")
+    private long heartbeatPeriod;
+
+    @CommandLine.Option(
+            names = {"--idle-timeout"},
+            description = "Time in ms without hearing from a client before closing its connection (default: ${DEFAULT-VALUE}).",
+            defaultValue = "60000")
+    private long idleTimeout;
+
+    @CommandLine.Option(
+            names = {"--grace"},
+            description = "Time in ms a player who lost its connection can RESUME its session, 0 to end it at once (default: ${DEFAULT-VALUE}).",
+            defaultValue = "30000")
+    private long grace;
+
+    @CommandLine.Option(
+            names = {"--connection-memory"},
+            description = "Bytes of buffers a connection holds at most, the longest line it can send (default: ${DEFAULT-VALUE}).",
+            defaultValue = "4096")
+    private int connectionMemory;
+
+    @CommandLine.Option(
+            names = {"--memory-budget"},
+            description = "Bytes of buffers kept for all the connections together (default: ${DEFAULT-VALUE}).",
+            defaultValue = "16777216")
+    private long memoryBudget;
+
+    @CommandLine.Option(
+            names = {"--drain-timeout"},
+            description = "Time in ms a drain, asked by SIGTERM, Ctrl-C or DRAIN, lets the running matches finish, 0 to stop at once (default: ${DEFAULT-VALUE}).",
+            defaultValue = "600000")
+    private long drainTimeout;
+
+    @CommandLine.Option(
+            names = {"--admin-token"},
+            description = "Secret of the DRAIN command, refused without it.")
+    private String adminToken;
+
+    @CommandLine.Option(
+            names = {"--replication-port"},
+            description = "Port on localhost where a standby server can follow the sessions and matches, 0 for none (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    private int replicationPort;
+
+    @CommandLine.Option(
+            names = {"--standby-of"},
+            description = "Replication port of a primary server on this host: follow it, and take its place once it is lost.",
+            defaultValue = "0")
+    private int standbyOf;
+
     @CommandLine.Option(
             names = {"-H", "--host"},
             description = "Host to use (default: ${DEFAULT-VALUE}).",
             defaultValue = "localhost")
     protected String host;
 
-    private final Map<String, ClientHandler> connectedPlayers = new ConcurrentHashMap<>();
-    private final AtomicInteger connectedClients = new AtomicInteger(0);
+    @CommandLine.Option(
+            names = {"-b", "--bots"},
+            description = "Number of bots waiting in the lobby to be challenged (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    private int bots;
+
+    @CommandLine.Option(
+            names = {"--bot-strategy"},
+            description = "Strength of the bots, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "GREEDY")
+    private BotStrategy botStrategy;
+
+    @CommandLine.Option(
+            names = {"--hint-precompute"},
+            description = "Number of random rounds solved at startup to fill the HINT cache (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10000")
+    private int hintPrecompute;
+
+    @CommandLine.Option(
+            names = {"--warmup"},
+            description = "Number of matches played in memory before accepting connections, to compile the code of the server (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    private int warmup;
+
+    @CommandLine.Option(
+            names = {"--shards"},
+            description = "Number of lobby partitions (default: number of cores).")
+    private int shards = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(
+            names = {"--cluster-port"},
+            description = "UDP port used to join a cluster of servers, 0 to run alone (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    private int clusterPort;
+
+    @CommandLine.Option(
+            names = {"--peers"},
+            split = ",",
+            description = "Other servers of the cluster, as host:clusterPort separated by commas.")
+    private List<String> peers = new ArrayList<>();
+
+    private Lobby lobby;
+    private ClusterNode cluster;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private AdmissionQueue admission;
+    private Heartbeat heartbeat;
+    private Sessions sessions;
+    private Ratings ratings;
+    private BufferPool buffers;
+    private Drain drain;
+    private Replicator replicator;
+    // State of the primary when it was lost, on a standby
+    private ReplicaState restored;
     private ExecutorService threadPool;
+    // Socket accepting the clients, closed by stop()
+    private volatile ServerSocket listening;
+    private volatile boolean stopping = false;
+    private final CountDownLatch bound = new CountDownLatch(1);
+    // Counted down once call() shut the server down
+    private final CountDownLatch finished = new CountDownLatch(1);
 
     @Override
     public Integer call() {
         threadPool = Executors.newFixedThreadPool(maxClients);
+        lobby = new Lobby(shards);
+        ratings = new Ratings();
+        buffers = new BufferPool(connectionMemory, memoryBudget);
+        drain = new Drain(adminToken, this::stop);
 
-        try (ServerSocket serverSocket = new ServerSocket()) {
-            serverSocket.bind(new InetSocketAddress(host, port));
+        if (clusterPort > 0) {
+            try {
+                cluster = new ClusterNode(host, clusterPort, peers, lobby, ratings);
+            } catch (IOException e) {
+                System.err.println("[SERVER] Cannot join the cluster: " + e.getMessage());
+                return -1;
+            }
+            cluster.start();
+        }
+
+        long start = System.nanoTime();
+        Solver.SHARED.precompute(hintPrecompute, ThreadLocalRandom.current());
+        System.out.println("[SERVER] " + Solver.SHARED.size() + " hints precomputed in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        // Compile the server before the first player meets it
+        if (warmup > 0)
+            new Warmup(warmup, shards, grace, buffers).run();
+
+        // Bots do not use a connection, they do not count in the maximum of clients
+        for (int i = 1; i <= bots; i++) {
+            BotPlayer bot = new BotPlayer("Bot" + i, botStrategy, lobby, ratings);
+            lobby.register(bot.getUsername(), bot);
+        }
+
+        Standby standby = standbyOf > 0 ? new Standby(standbyOf) : null;
+        try (ServerSocket serverSocket = open(standby)) {
+            // Port 0 binds an ephemeral port
+            port = serverSocket.getLocalPort();
             System.out.println("[SERVER] Listening on port " + port);
 
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                System.out.println("[SERVER] Shutdown requested.");
-                shutdown();
-            }));
+            Runtime.getRuntime().addShutdownHook(new Thread(this::onExit, "shutdown"));
+
+            if (replicationPort > 0) {
+                replicator = new Replicator(replicationPort);
+                replicator.start();
+                GameManager.journal(replicator);
+                ratings.observe(replicator::ratingChanged);
+            }
+            heartbeat = new Heartbeat(heartbeatPeriod, idleTimeout);
+            Tournaments tournaments = new Tournaments(lobby, ratings);
+            sessions = new Sessions(grace);
+            ServerContext context = new ServerContext(lobby, cluster, metrics,
+                    new RateLimits(rate, burst, rateGetPlayers, rateChallenge, rateMatchMsg, rateStrikes), heartbeat,
+                    tournaments, sessions, ratings, buffers, drain, replicator);
+            if (standby != null)
+                takeOver(standby, context);
+            admission = new AdmissionQueue(lobby, metrics, socket -> serve(socket, context),
+                    maxClients, queueSize, latencyTarget);
+            metrics.gauge("connections", lobby::connections);
+            metrics.gauge("players", lobby::size);
+            metrics.gauge("admissionLimit", admission::getLimit);
+            metrics.gauge("admissionWaiting", admission::getWaiting);
+            metrics.gauge("tournaments", tournaments::size);
+            metrics.gauge("sessions", sessions::size);
+            metrics.gauge("ratingsPending", ratings::pending);
+            metrics.gauge("bufferBudget", buffers::getBudget);
+            metrics.gauge("bufferLent", buffers::getLent);
+            metrics.gauge("bufferFree", buffers::getFree);
+            metrics.gauge("bufferOverBudget", buffers::getOverBudget);
+            metrics.gauge("matchesRunning", GameManager::running);
+            admission.start();
+            heartbeat.start();
+            listening = serverSocket;
+            bound.countDown();
+            // stop() called before the socket was bound
+            if (stopping)
+                stop();
 
             while (!threadPool.isShutdown()) {
                 Socket clientSocket = serverSocket.accept();
-                try {
-                    if (connectedClients.get() < maxClients) {
-                        System.out.println("[SERVER] Connection from " + clientSocket.getRemoteSocketAddress());
-                        connectedClients.incrementAndGet();
-                        ClientHandler handler = new ClientHandler(clientSocket, connectedPlayers, connectedClients);
-                        threadPool.execute(handler);
-                    } else {
-                        // simple backoff: accept and close or block until slot available; here just sleep briefly
-                        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
-                        out.write("REJECT SERVER IS FULL");
-                        out.flush();
-                        clientSocket.close();
-                    }
-                } catch (IOException e) {
-                    System.err.println("[SERVER] IO exception: " + e.getMessage());
-                }
+                // Served, queued until a slot frees up, or refused when the queue is full too
+                admission.offer(clientSocket);
             }
         } catch (IOException e) {
+            if (stopping)
+                return 0;
             System.err.println("[SERVER] Cannot open server socket: " + e.getMessage());
             return -1;
         } finally {
+            if (drain.isDraining())
+                awaitMatches();
             shutdown();
+            finished.countDown();
         }
         return 0;
     }
 
+    /**
+     * The process is stopping, on SIGTERM or Ctrl-C: drain the server and wait for call() to shut it down,
+     * the process exits once the hook returns. With no drain timeout, the server stops at once.
+     **/
+    private void onExit() {
+        System.out.println("[SERVER] Shutdown requested.");
+        // call() already shut the server down
+        if (finished.getCount() == 0)
+            return;
+        if (drainTimeout <= 0) {
+            shutdown();
+            return;
+        }
+        // A drain asked by DRAIN goes on, the process waits for it
+        if (!drain.isDraining())
+            drain.begin();
+        try {
+            if (!finished.await(drainTimeout + SHUTDOWN_MARGIN_MS, TimeUnit.MILLISECONDS))
+                System.err.println("[SERVER] Drain not over, stopping anyway");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Let the running matches finish, and send the idle players to another server as they come back to the lobby.
+     * Done once no match runs and no player is left, or when the drain timeout is over.
+     **/
+    private void awaitMatches() {
+        if (admission != null)
+            admission.drain();
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        while (true) {
+            lobby.forEachAvailable(p -> {
+                if (p instanceof ClientHandler h)
+                    h.drain();
+            });
+            // A player still here is in a match, maybe on another node, challenged or in a tournament
+            boolean connected = lobby.players().stream().anyMatch(p -> p instanceof ClientHandler);
+            if ((GameManager.running() == 0 && !connected) || drain.isForced()
+                    || System.currentTimeMillis() >= deadline)
+                break;
+            try {
+                Thread.sleep(DRAIN_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int left = GameManager.running();
+        if (left == 0)
+            System.out.println("[SERVER] Drained, no match left");
+        else
+            System.out.println("[SERVER] Drain stopped with " + left + " matches running");
+    }
+
+    /**
+     * Wait until the server accepts connections, for a server run in the same process as its clients.
+     *
+     * @return the port the server listens on, -1 if it did not bind in time
+     **/
+    int awaitPort(long timeoutMs) throws InterruptedException {
+        return bound.await(timeoutMs, TimeUnit.MILLISECONDS) ? port : -1;
+    }
+
+    /**
+     * Stop accepting connections, call() then shuts the server down and returns.
+     **/
+    void stop() {
+        stopping = true;
+        ServerSocket serverSocket = listening;
+        if (serverSocket == null) return;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Bind the server socket. A standby first follows its primary, and binds once the primary is lost.
+     **/
+    private ServerSocket open(Standby standby) throws IOException {
+        boolean follow = true;
+        while (true) {
+            if (standby != null && follow) {
+                try {
+                    restored = standby.follow();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            ServerSocket serverSocket = new ServerSocket();
+            try {
+                serverSocket.bind(new InetSocketAddress(host, port));
+                return serverSocket;
+            } catch (IOException e) {
+                serverSocket.close();
+                if (standby == null)
+                    throw e;
+            }
+            // The primary still holds the port: it is only slow, or it is stopping
+            follow = standby.primaryReachable();
+            if (follow) {
+                System.out.println("[STANDBY] Port " + port + " still used by the primary, following it again");
+            } else {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Restore the ratings, sessions and matches of the lost primary, its clients take them back with RESUME.
+     **/
+    private void takeOver(Standby standby, ServerContext context) {
+        for (Ratings.Rating r : restored.ratings())
+            ratings.restore(r.username(), r.elo(), r.games());
+        int sessionCount = 0;
+        for (ReplicaState.Session s : restored.sessions()) {
+            if (ClientHandler.restore(context, s.token(), s.username()) != null)
+                sessionCount++;
+        }
+        int matchCount = 0;
+        for (ReplicaState.Match m : restored.matches()) {
+            Player p1 = lobby.find(m.player1());
+            Player p2 = lobby.find(m.player2());
+            if (p1 == null || p2 == null || !lobby.claim(p1))
+                continue;
+            if (!lobby.claim(p2)) {
+                lobby.release(p1);
+                continue;
+            }
+            GameManager.resume(m.id(), p1, p2, m.word0(), m.word1(), ratings);
+            matchCount++;
+        }
+        System.out.println("[STANDBY] Took over " + sessionCount + " sessions and " + matchCount + " matches, "
+                + standby.sinceLostMs() + " ms after losing the primary");
+    }
+
+    /**
+     * Serve an admitted connection, its slot goes back to the admission queue once it is closed.
+     **/
+    private void serve(Socket clientSocket, ServerContext context) {
+        System.out.println("[SERVER] Connection from " + clientSocket.getRemoteSocketAddress());
+        lobby.connectionOpened();
+        ClientHandler handler = new ClientHandler(clientSocket, context);
+        threadPool.execute(() -> {
+            try {
+                handler.run();
+            } finally {
+                lobby.connectionClosed();
+                admission.release();
+            }
+        });
+    }
+
     private void shutdown() {
         if (threadPool != null && !threadPool.isShutdown()) {
-            for (ClientHandler h : connectedPlayers.values()) {
-                h.shutdown();
+            if (admission != null)
+                admission.shutdown();
+            if (heartbeat != null)
+                heartbeat.shutdown();
+            if (sessions != null)
+                sessions.shutdown();
+            for (Player p : lobby.players()) {
+                if (p instanceof ClientHandler h)
+                    h.shutdown();
             }
             threadPool.shutdown();
             try {
@@ -96,6 +498,12 @@ public class Server implements Callable<Integer> {
                 threadPool.shutdownNow();
                 Thread.currentThread().interrupt();
             }
+            lobby.shutdown();
+            if (cluster != null)
+                cluster.close();
+            ratings.shutdown();
+            if (replicator != null)
+                replicator.shutdown();
         }
     }
 }
@@ -0,0 +1,86 @@
+package ch.heigvd.dai.commands;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import ch.heigvd.dai.jitsus.bot.BotStrategy;
+import ch.heigvd.dai.jitsus.game.GameEngine;
+import ch.heigvd.dai.jitsus.simulation.SimulationStats;
+import ch.heigvd.dai.jitsus.simulation.SimulationTask;
+import picocli.CommandLine;
+
+@CommandLine.Command(name = "simulate", description = "Play bot-vs-bot matches without network to measure the game balance.")
+public class Simulate implements Callable<Integer> {
+
+    @CommandLine.Option(
+            names = {"-n", "--matches"},
+            description = "Number of matches to play (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000000")
+    private long matches;
+
+    @CommandLine.Option(
+            names = {"-s", "--seed"},
+            description = "Seed of the simulation, random if not given.")
+    private Long seed;
+
+    @CommandLine.Option(
+            names = {"-t", "--threads"},
+            description = "Number of worker threads (default: number of cores).")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(
+            names = {"--player1"},
+            description = "Strategy of player1, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "RANDOM")
+    private BotStrategy strategy1;
+
+    @CommandLine.Option(
+            names = {"--player2"},
+            description = "Strategy of player2, one of ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "RANDOM")
+    private BotStrategy strategy2;
+
+    @Override
+    public Integer call() {
+        if (matches <= 0 || threads <= 0) {
+            System.err.println("[SIMULATE] The number of matches and threads must be positive.");
+            return -1;
+        }
+        long usedSeed = seed != null ? seed : System.nanoTime();
+        System.out.println("[SIMULATE] " + matches + " matches, " + strategy1 + " vs " + strategy2
+                + ", " + threads + " threads, seed " + usedSeed);
+
+        long start = System.nanoTime();
+        SimulationStats stats;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            stats = pool.invoke(new SimulationTask(strategy1, strategy2, usedSeed, 0, matches));
+        } finally {
+            pool.shutdown();
+        }
+        long wall = System.nanoTime() - start;
+
+        System.out.println("[SIMULATE] Match outcomes:");
+        for (GameEngine.Outcome outcome : GameEngine.Outcome.values())
+            System.out.printf("  %-10s %12d  %6.2f %%%n", outcome, stats.getOutcome(outcome),
+                    percent(stats.getOutcome(outcome), stats.getMatches()));
+
+        System.out.println("[SIMULATE] Round win types:");
+        for (GameEngine.WinType type : GameEngine.WinType.values())
+            System.out.printf("  %-10s %12d  %6.2f %%%n", type, stats.getWinType(type),
+                    percent(stats.getWinType(type), stats.getRounds()));
+
+        System.out.printf("[SIMULATE] Average rounds per match: %.3f / %d (cap reached in %.2f %% of matches)%n",
+                stats.getAverageRounds(), GameEngine.MAX_ROUND,
+                percent(stats.getRoundCapReached(), stats.getMatches()));
+        System.out.printf("[SIMULATE] First player advantage: %+.4f%n", stats.getFirstPlayerAdvantage());
+        System.out.printf("[SIMULATE] CPU cost: %.1f ns per match, %.0f matches per core-second%n",
+                stats.getCpuNanosPerMatch(), 1e9 / Math.max(stats.getCpuNanosPerMatch(), 1));
+        System.out.printf("[SIMULATE] Wall time: %.3f s, %.0f matches per second%n",
+                wall / 1e9, stats.getMatches() * 1e9 / wall);
+        return 0;
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+}
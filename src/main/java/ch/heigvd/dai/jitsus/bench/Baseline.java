@@ -0,0 +1,87 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Results of a benchmark kept in a properties file, the later runs are compared with:
+ * the p99 latency of each operation, in microseconds, and the matches played per second.
+ **/
+public class Baseline {
+    private static final String THROUGHPUT = "matchesPerSecond";
+
+    private final Properties values;
+
+    private Baseline(Properties values) {
+        this.values = values;
+    }
+
+    /**
+     * @return the baseline in the file, null if there is none
+     **/
+    public static Baseline load(Path file) throws IOException {
+        if (!Files.exists(file))
+            return null;
+        Properties values = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            values.load(reader);
+        }
+        return new Baseline(values);
+    }
+
+    public static void write(Path file, BenchStats stats, double matchesPerSecond) throws IOException {
+        Properties values = new Properties();
+        for (BenchStats.Operation operation : BenchStats.Operation.values()) {
+            LatencyHistogram h = stats.latency(operation);
+            if (h.getCount() > 0)
+                values.setProperty(key(operation), String.valueOf(h.percentile(99) / 1000));
+        }
+        values.setProperty(THROUGHPUT, String.format(Locale.ROOT, "%.1f", matchesPerSecond));
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            values.store(writer, "Baseline of the bench command, p99 latencies in microseconds");
+        }
+    }
+
+    private static String key(BenchStats.Operation operation) {
+        return operation.name().toLowerCase(Locale.ROOT) + ".p99Us";
+    }
+
+    /**
+     * @param thresholdPercent growth of a p99 latency allowed over the baseline
+     * @param slackMicros growth allowed in any case
+     * @return one line per operation whose p99 latency regressed, empty if none did
+     **/
+    public List<String> regressions(BenchStats stats, double thresholdPercent, long slackMicros) {
+        List<String> regressions = new ArrayList<>();
+        for (BenchStats.Operation operation : BenchStats.Operation.values()) {
+            String kept = values.getProperty(key(operation));
+            LatencyHistogram h = stats.latency(operation);
+            if (kept == null || h.getCount() == 0)
+                continue;
+            long before = Long.parseLong(kept.trim());
+            long now = h.percentile(99) / 1000;
+            double limit = before * (1 + thresholdPercent / 100) + slackMicros;
+            if (now > limit)
+                regressions.add(String.format(Locale.ROOT, "%s p99 %d us, baseline %d us, limit %.0f us",
+                        operation, now, before, limit));
+        }
+        return regressions;
+    }
+
+    /**
+     * @return the matches per second of the baseline, 0 if unknown
+     **/
+    public double getMatchesPerSecond() {
+        return Double.parseDouble(values.getProperty(THROUGHPUT, "0"));
+    }
+}
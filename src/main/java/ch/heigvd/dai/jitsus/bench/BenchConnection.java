@@ -0,0 +1,106 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Connection of a benchmark client to the server, over TCP as a real client.
+ * An error of the server, a refused command or a server silent for too long fails the client.
+ **/
+class BenchConnection implements Closeable {
+    static final int TIMEOUT_MS = 30_000;
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final OutputStream out;
+    private final BenchStats stats;
+
+    BenchConnection(InetSocketAddress address, BenchStats stats) throws IOException {
+        this.socket = new Socket();
+        socket.connect(address, TIMEOUT_MS);
+        socket.setSoTimeout(TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = socket.getOutputStream();
+        this.stats = stats;
+    }
+
+    void send(String command) throws IOException {
+        out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        stats.commandSent();
+    }
+
+    /**
+     * @return the next line of the server
+     **/
+    String read() throws IOException {
+        String line;
+        try {
+            line = in.readLine();
+        } catch (SocketTimeoutException e) {
+            throw new IOException("nothing received for " + TIMEOUT_MS / 1000 + " s");
+        }
+        if (line == null)
+            throw new EOFException("connection closed by the server");
+        if (line.startsWith("ERROR") || line.equals("RATE_LIMITED") || line.equals("INVALID_COMMAND")
+                || line.startsWith("QUEUED") || line.startsWith("REJECT"))
+            throw new IOException("unexpected answer: " + line);
+        return line;
+    }
+
+    /**
+     * Send a command and skip the lines until its answer, only for a client not in a match.
+     *
+     * @param answer start of the line answering the command
+     * @return the answer
+     **/
+    String request(BenchStats.Operation operation, String command, String answer) throws IOException {
+        long start = System.nanoTime();
+        String line = ask(command, answer);
+        stats.record(operation, System.nanoTime() - start);
+        return line;
+    }
+
+    /**
+     * Same as {@link #request}, without measuring it.
+     **/
+    String ask(String command, String answer) throws IOException {
+        send(command);
+        String line;
+        do {
+            line = read();
+        } while (!line.startsWith(answer));
+        return line;
+    }
+
+    /**
+     * Leave the server, and wait until it closed the connection so that the player is gone.
+     **/
+    void leave() throws IOException {
+        send("DISCONNECT");
+        try {
+            while (in.readLine() != null) {
+                // Messages sent before the DISCONNECT was read
+            }
+        } catch (SocketTimeoutException e) {
+            throw new IOException("connection not closed after DISCONNECT");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
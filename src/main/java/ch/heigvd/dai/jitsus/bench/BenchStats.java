@@ -0,0 +1,81 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the clients of a benchmark measured and what went wrong.
+ * Each client fills its own instance, then they are merged.
+ **/
+public class BenchStats {
+    /** Requests whose answer time is measured. **/
+    public enum Operation {
+        // CONNECT until OK
+        CONNECT,
+        // GETPLAYERS until the list
+        GETPLAYERS,
+        // CHALLENGE until CHALLENGE_SENT
+        CHALLENGE,
+        // PLAY until MOVE_ACCEPTED
+        PLAY
+    }
+
+    // Failures kept to be printed, the others are only counted
+    private static final int FAILURES_KEPT = 20;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final List<String> failures = new ArrayList<>();
+    private long failureCount;
+    private long commands;
+
+    public BenchStats() {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    void record(Operation operation, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+    }
+
+    void commandSent() {
+        commands++;
+    }
+
+    public void fail(String failure) {
+        failureCount++;
+        if (failures.size() < FAILURES_KEPT)
+            failures.add(failure);
+    }
+
+    public void merge(BenchStats other) {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i].merge(other.latencies[i]);
+        for (String failure : other.failures)
+            if (failures.size() < FAILURES_KEPT)
+                failures.add(failure);
+        failureCount += other.failureCount;
+        commands += other.commands;
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long getCommands() {
+        return commands;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return the first failures, at most 20
+     **/
+    public List<String> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+
+/**
+ * Benchmark client coming and going in the lobby while the matches are played:
+ * each cycle connects under a new name, lists the players and leaves.
+ **/
+public class ChurnClient implements Callable<BenchStats> {
+    private final InetSocketAddress address;
+    private final String name;
+    private final int cycles;
+    private final BenchStats stats = new BenchStats();
+
+    /**
+     * @param name prefix of the names, followed by the cycle
+     **/
+    public ChurnClient(InetSocketAddress address, String name, int cycles) {
+        this.address = address;
+        this.name = name;
+        this.cycles = cycles;
+    }
+
+    @Override
+    public BenchStats call() {
+        for (int i = 0; i < cycles; i++) {
+            String cycleName = name + "_" + i;
+            try (BenchConnection connection = new BenchConnection(address, stats)) {
+                connection.request(BenchStats.Operation.CONNECT, "CONNECT " + cycleName, "OK");
+                connection.request(BenchStats.Operation.GETPLAYERS, "GETPLAYERS", "PLAYERS");
+                connection.leave();
+            } catch (IOException e) {
+                stats.fail(cycleName + ": " + e.getMessage());
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+/**
+ * Latencies of one kind of request, counted in buckets growing by an eighth of an octave,
+ * so a percentile is known within about 9 %.
+ * Each client fills its own instance, then they are merged.
+ **/
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    // Up to 2^40 ns, about 18 minutes
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long maxNanos;
+
+    /**
+     * @param nanos time between a request and its answer
+     **/
+    public void record(long nanos) {
+        counts[bucketOf(Math.max(1, nanos))]++;
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    private static int bucketOf(long nanos) {
+        int octave = 63 - Long.numberOfLeadingZeros(nanos);
+        // The 3 bits following the highest one give the part of the octave
+        int fraction = octave >= 3 ? (int) (nanos >>> (octave - 3)) & (SUB_BUCKETS - 1) : 0;
+        return Math.min(BUCKETS - 1, octave * SUB_BUCKETS + fraction);
+    }
+
+    /**
+     * @return the highest latency of a bucket, in nanoseconds
+     **/
+    private static long upperBound(int bucket) {
+        int octave = bucket / SUB_BUCKETS;
+        int fraction = bucket % SUB_BUCKETS;
+        if (octave < 3)
+            return (2L << octave) - 1;
+        return ((long) (SUB_BUCKETS + fraction + 1) << (octave - 3)) - 1;
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param percent between 0 and 100
+     * @return the latency under which this percent of the requests were answered, in nanoseconds, 0 if none
+     **/
+    public long percentile(double percent) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percent / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(upperBound(i), maxNanos);
+        }
+        return maxNanos;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark client playing one match against the other client of its pairing.
+ * Its cards, its chat and the round it may leave at come from its seed.
+ **/
+public class MatchClient implements Callable<BenchStats> {
+    // Share of the rounds in which the client also sends a chat message
+    private static final double CHAT_SHARE = 0.1;
+
+    /**
+     * How a player saw the end of its match.
+     *
+     * @param outcome won, lost or tied; left for the player who left, abandoned for its opponent
+     * @param score points of the player at the end of the match
+     * @param rounds rounds played to their end
+     **/
+    public record Result(String outcome, int score, int rounds) {
+    }
+
+    /** Both players of a match, seat 0 challenges seat 1. **/
+    public static final class Pairing {
+        private final String[] names;
+        private final int leaver;
+        private final int leaveRound;
+        private final CountDownLatch challengedReady = new CountDownLatch(1);
+        private final Result[] results = new Result[2];
+
+        /**
+         * @param leaver seat of the player who leaves during the match, -1 if both play it to its end
+         * @param leaveRound round the player leaves at, from 1: the match may be over before
+         **/
+        public Pairing(String challenger, String challenged, int leaver, int leaveRound) {
+            this.names = new String[] {challenger, challenged};
+            this.leaver = leaver;
+            this.leaveRound = leaveRound;
+        }
+
+        private synchronized void result(int seat, Result result) {
+            results[seat] = result;
+        }
+
+        /**
+         * @return true if the match went to its end
+         **/
+        public synchronized boolean isPlayed() {
+            return results[0] != null && results[1] != null
+                    && !results[0].outcome().equals("left") && !results[1].outcome().equals("left");
+        }
+
+        /**
+         * Check that both players saw the same match, once both clients are done.
+         *
+         * @return what does not match, null if both sides agree
+         **/
+        public synchronized String check() {
+            String match = names[0] + " vs " + names[1] + ": ";
+            if (results[0] == null || results[1] == null)
+                return null; // the failing client already reported it
+            String o0 = results[0].outcome();
+            String o1 = results[1].outcome();
+            if (o0.equals("left") || o1.equals("left")) {
+                String other = o0.equals("left") ? o1 : o0;
+                return other.equals("abandoned") ? null : match + "a player left, the other one " + other;
+            }
+            boolean agree = o0.equals("won") ? o1.equals("lost")
+                    : o0.equals("tied") ? o1.equals("tied")
+                    : o0.equals("lost") && (o1.equals("won") || o1.equals("lost"));
+            if (!agree)
+                return match + "outcomes " + o0 + " and " + o1;
+            if (results[0].rounds() != results[1].rounds())
+                return match + results[0].rounds() + " and " + results[1].rounds() + " rounds";
+            return null;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final Pairing pairing;
+    private final int seat;
+    private final Random random;
+    private final BenchStats stats = new BenchStats();
+
+    public MatchClient(InetSocketAddress address, Pairing pairing, int seat, long seed) {
+        this.address = address;
+        this.pairing = pairing;
+        this.seat = seat;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public BenchStats call() {
+        String name = pairing.names[seat];
+        try (BenchConnection connection = new BenchConnection(address, stats)) {
+            connection.request(BenchStats.Operation.CONNECT, "CONNECT " + name, "OK");
+            connection.request(BenchStats.Operation.GETPLAYERS, "GETPLAYERS", "PLAYERS");
+            Result result = play(connection);
+            pairing.result(seat, result);
+            if (!result.outcome().equals("left"))
+                connection.leave();
+        } catch (IOException e) {
+            stats.fail(name + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            stats.fail(name + ": interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            // Never leave the challenger waiting
+            if (seat == 1)
+                pairing.challengedReady.countDown();
+        }
+        return stats;
+    }
+
+    /**
+     * Follow the match from the challenge to its end, answering the lines of the server as they come:
+     * the answer to a PLAY may follow the end of its round.
+     **/
+    private Result play(BenchConnection connection) throws IOException, InterruptedException {
+        long challengeSent = 0;
+        if (seat == 1) {
+            pairing.challengedReady.countDown();
+        } else {
+            if (!pairing.challengedReady.await(BenchConnection.TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                throw new IOException("opponent not connected");
+            challengeSent = System.nanoTime();
+            connection.send("CHALLENGE " + pairing.names[1]);
+        }
+
+        ArrayDeque<Long> playsSent = new ArrayDeque<>();
+        int dealt = 0;
+        int rounds = 0;
+        int score = 0;
+        while (true) {
+            String line = connection.read();
+            if (line.startsWith("CHALLENGE_SENT")) {
+                stats.record(BenchStats.Operation.CHALLENGE, System.nanoTime() - challengeSent);
+            } else if (line.startsWith("CHALLENGE_REQUEST")) {
+                connection.send("ACCEPT y");
+            } else if (line.startsWith("Please select")) {
+                dealt++;
+                if (seat == pairing.leaver && dealt == pairing.leaveRound) {
+                    connection.leave();
+                    return new Result("left", score, rounds);
+                }
+                if (random.nextDouble() < CHAT_SHARE)
+                    connection.send("MATCH_MSG round " + dealt);
+                playsSent.addLast(System.nanoTime());
+                connection.send("PLAY " + (1 + random.nextInt(5)));
+            } else if (line.startsWith("MOVE_ACCEPTED")) {
+                Long sent = playsSent.pollFirst();
+                if (sent != null)
+                    stats.record(BenchStats.Operation.PLAY, System.nanoTime() - sent);
+            } else if (line.startsWith("ROUND_END")) {
+                rounds++;
+            } else if (line.startsWith("Now your score is ")) {
+                score = Integer.parseInt(line.substring(18).trim());
+            } else if (line.startsWith("MATCH_END Your opponent disconnected")) {
+                return new Result("abandoned", score, rounds);
+            } else if (line.startsWith("MATCH_END You ")) {
+                // MATCH_END You <outcome> the match with <score> points!
+                String[] words = line.split(" ");
+                int points = Integer.parseInt(words[6]);
+                if (points != score)
+                    stats.fail(pairing.names[seat] + ": match ended with " + points + " points, last score " + score);
+                return new Result(words[2], points, rounds);
+            } else if (line.startsWith("CHALLENGE_DECLINED")) {
+                throw new IOException(line);
+            }
+        }
+    }
+}
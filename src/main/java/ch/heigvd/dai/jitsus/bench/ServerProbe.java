@@ -0,0 +1,43 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Looks at the server through METRICS once the benchmark clients are done.
+ **/
+public final class ServerProbe {
+    // Time given to the server to forget the clients who left
+    private static final long LEFTOVER_WAIT_MS = 5000;
+
+    private ServerProbe() {
+    }
+
+    /**
+     * Check that the server forgot every client who left, and refused no command.
+     *
+     * @return what is left, null if nothing is
+     **/
+    public static String leftovers(InetSocketAddress address) throws IOException, InterruptedException {
+        try (BenchConnection connection = new BenchConnection(address, new BenchStats())) {
+            connection.ask("CONNECT probe", "OK");
+            long deadline = System.currentTimeMillis() + LEFTOVER_WAIT_MS;
+            String metrics;
+            while (true) {
+                metrics = " " + connection.ask("METRICS", "METRICS") + " ";
+                if (metrics.contains(" players=1 ") || System.currentTimeMillis() > deadline)
+                    break;
+                Thread.sleep(100);
+            }
+            connection.leave();
+            if (!metrics.contains(" players=1 "))
+                return "players left on the server:" + metrics;
+            if (!metrics.contains(" rateLimited=0 "))
+                return "commands refused by the server:" + metrics;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bot;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import ch.heigvd.dai.jitsus.game.GameEngine;
+import ch.heigvd.dai.jitsus.game.GameManager;
+import ch.heigvd.dai.jitsus.game.MatchEvent;
+import ch.heigvd.dai.jitsus.game.MatchSession;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+
+/**
+ * Opponent living inside the server.
+ * It accepts every challenge and plays directly with the GameManager, without socket nor text parsing.
+ **/
+public class BotPlayer implements Player {
+    private final String username;
+    private final BotStrategy strategy;
+    private final Lobby lobby;
+    private final Ratings ratings;
+    private volatile MatchSession matchSession = null;
+    private volatile Player opponent = null;
+
+    public BotPlayer(String username, BotStrategy strategy, Lobby lobby, Ratings ratings) {
+        this.username = username;
+        this.strategy = strategy;
+        this.lobby = lobby;
+        this.ratings = ratings;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Everything the bot needs comes from {@link #onDeal}, the messages are dropped.
+     **/
+    @Override
+    public void send(String message) {
+    }
+
+    @Override
+    public String handleMatchEnd(int score, int opponentScore) {
+        if (!isInMatch()) {
+            return "ERROR Not In Match";
+        }
+        this.setMatchSession(null);
+        this.setOpponent(null);
+        lobby.release(this);
+        return "OK";
+    }
+
+    @Override
+    public double getMmr() {
+        return Math.rint(ratings.snapshot().elo(username));
+    }
+
+    @Override
+    public boolean isInMatch() {
+        return matchSession != null;
+    }
+
+    @Override
+    public boolean isChallenged() {
+        return opponent != null;
+    }
+
+    @Override
+    public MatchSession getMatchSession() {
+        return matchSession;
+    }
+
+    @Override
+    public void setMatchSession(MatchSession session) {
+        this.matchSession = session;
+    }
+
+    @Override
+    public void setOpponent(Player opponent) {
+        this.opponent = opponent;
+    }
+
+    /**
+     * A bot always accepts, the match starts right away.
+     **/
+    @Override
+    public void challengedBy(Player challenger) throws IOException {
+        setOpponent(challenger);
+        challenger.send("CHALLENGE_ACCEPTED");
+        GameManager.start(challenger, this, ratings);
+    }
+
+    @Override
+    public void onDeal(GameManager session, GameEngine engine, int seat) {
+        int slot = strategy.choose(engine, seat, ThreadLocalRandom.current());
+        session.receive(MatchEvent.play(seat, slot));
+    }
+}
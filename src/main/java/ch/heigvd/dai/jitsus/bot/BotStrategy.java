@@ -0,0 +1,73 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.bot;
+
+import java.util.random.RandomGenerator;
+import ch.heigvd.dai.jitsus.game.GameEngine;
+import ch.heigvd.dai.jitsus.game.Solver;
+
+/**
+ * Ways for a bot to pick a card in its hand.
+ * Only the SOLVER bot looks at the opponent hand, the same way a HINT does.
+ **/
+public enum BotStrategy {
+    /** Plays any card of the hand. **/
+    RANDOM {
+        @Override
+        public int choose(GameEngine engine, int seat, RandomGenerator random) {
+            return random.nextInt(GameEngine.HAND_SIZE);
+        }
+    },
+
+    /** Plays the card with the best average gap against every card it cannot see. **/
+    GREEDY {
+        @Override
+        public int choose(GameEngine engine, int seat, RandomGenerator random) {
+            long hand = engine.hand(seat);
+            int best = 0;
+            int bestGap = Integer.MIN_VALUE;
+            for (int i = 0; i < GameEngine.HAND_SIZE; i++) {
+                int card = engine.card(seat, i);
+                int gap = 0;
+                for (int other = 0; other < GameEngine.DECK_SIZE; other++)
+                    if ((hand & (1L << other)) == 0)
+                        gap += GAPS[card][other];
+                if (gap > bestGap) {
+                    bestGap = gap;
+                    best = i;
+                }
+            }
+            return best;
+        }
+    },
+
+    /** Plays the equilibrium strategy of the round, like a player following every HINT. **/
+    SOLVER {
+        @Override
+        public int choose(GameEngine engine, int seat, RandomGenerator random) {
+            return Solver.SHARED.pick(engine.hand(seat), engine.hand(1 - seat), random);
+        }
+    };
+
+    // Score gap of the duel between two cards, seen from the first card
+    private static final int[][] GAPS = new int[GameEngine.DECK_SIZE][GameEngine.DECK_SIZE];
+
+    static {
+        for (int c1 = 0; c1 < GameEngine.DECK_SIZE; c1++)
+            for (int c2 = 0; c2 < GameEngine.DECK_SIZE; c2++) {
+                int res = GameEngine.duel(c1, c2);
+                GAPS[c1][c2] = GameEngine.points1(res) - GameEngine.points2(res);
+            }
+    }
+
+    /**
+     * Choose the card to play this round.
+     *
+     * @param engine match being played, the hands are already dealt
+     * @param seat 0 for player1, 1 for player2
+     * @param random source of randomness of the calling thread
+     * @return the position of the card in the hand, from 0 to 4
+     **/
+    public abstract int choose(GameEngine engine, int seat, RandomGenerator random);
+}
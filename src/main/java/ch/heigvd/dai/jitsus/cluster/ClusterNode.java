@@ -0,0 +1,326 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import ch.heigvd.dai.jitsus.game.MatchEvent;
+import ch.heigvd.dai.jitsus.game.MatchSession;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+
+/**
+ * Links this server to the other servers of a cluster over UDP.
+ *
+ * Every second, each node pushes the list of its players to every peer,
+ * which builds a directory of the players of the whole cluster, dropped when a node stays silent:
+ * its players in a match run here then leave it, as after a DISCONNECT.
+ * A challenge to a player of another node is sent to that node, which runs the match;
+ * the traffic of the remote player is relayed between the two nodes.
+ *
+ * Datagrams are neither acknowledged nor repeated: the cluster is meant for nodes on the same host
+ * or on a reliable local network. A datagram that does not come from one of the peers is dropped.
+ *
+ * Each datagram is a header line, followed by an optional payload:
+ *      DIRECTORY <node>                        payload: one "name TAB mmr TAB available" line per player
+ *      CHALLENGE <node> <challenger> <target>  payload: mmr of the challenger
+ *      DELIVER <player>                        payload: message to send to the player
+ *      RELEASE <player>                        the challenge of the player is over
+ *      MATCH_START <player> <node>             the player is in a match run by the node
+ *      MATCH_EVENT <player>                    payload: message of the player to its match
+ *      MATCH_CHAT <player>                     payload: chat message of the player to its opponent
+ *      MATCH_END <player> <score> <opponent>   the match of the player is over, with the points of both; payload: mmr of the opponent
+ **/
+public class ClusterNode implements Closeable {
+    private static final int GOSSIP_PERIOD_MS = 1000;
+    private static final int EXPIRY_MS = 3 * GOSSIP_PERIOD_MS;
+    private static final int MAX_DATAGRAM = 60_000;
+
+    /** A player of another node, as last announced by it. **/
+    public record Entry(String name, double mmr, boolean available, String node) {
+    }
+
+    private record NodeView(long lastSeen, Map<String, Entry> players) {
+    }
+
+    private final String nodeId;
+    private final List<String> peers;
+    // Addresses the datagrams are accepted from, resolved once
+    private final Set<SocketAddress> peerAddresses = new HashSet<>();
+    private final Lobby lobby;
+    private final Ratings ratings;
+    private final DatagramSocket socket;
+    private final Map<String, NodeView> directory = new ConcurrentHashMap<>();
+    // Players of other nodes taking part in a match run here
+    private final Map<String, RemotePlayer> remotePlayers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService gossip = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-gossip");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param host address of this node, as known by the peers
+     * @param port UDP port of this node
+     * @param peers other nodes, as host:port
+     * @param ratings rates the players of this node who played on another node
+     **/
+    public ClusterNode(String host, int port, List<String> peers, Lobby lobby, Ratings ratings) throws SocketException {
+        this.nodeId = host + ":" + port;
+        this.peers = peers;
+        this.lobby = lobby;
+        this.ratings = ratings;
+        this.socket = new DatagramSocket(new InetSocketAddress(host, port));
+        for (String peer : peers) {
+            try {
+                InetSocketAddress address = address(peer);
+                if (address.isUnresolved())
+                    System.err.println("[CLUSTER] Unknown host of peer " + peer);
+                else
+                    peerAddresses.add(address);
+            } catch (RuntimeException e) {
+                System.err.println("[CLUSTER] Invalid peer " + peer + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void start() {
+        Thread receiver = new Thread(this::receive, "cluster-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        gossip.scheduleAtFixedRate(this::announce, 0, GOSSIP_PERIOD_MS, TimeUnit.MILLISECONDS);
+        System.out.println("[CLUSTER] Node " + nodeId + " started with peers " + peers);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /* Directory */
+
+    /**
+     * @return the player of another node with this name, null if unknown.
+     **/
+    public Entry find(String name) {
+        long now = System.currentTimeMillis();
+        for (NodeView view : directory.values()) {
+            Entry entry = view.players.get(name);
+            if (entry != null && now - view.lastSeen < EXPIRY_MS)
+                return entry;
+        }
+        return null;
+    }
+
+    public void forEachRemoteAvailable(Consumer<Entry> action) {
+        long now = System.currentTimeMillis();
+        for (NodeView view : directory.values()) {
+            if (now - view.lastSeen >= EXPIRY_MS) continue;
+            for (Entry entry : view.players.values())
+                if (entry.available)
+                    action.accept(entry);
+        }
+    }
+
+    private void announce() {
+        StringBuilder sb = new StringBuilder("DIRECTORY ").append(nodeId);
+        for (Player p : lobby.players()) {
+            String line = "\n" + p.getUsername() + "\t" + p.getMmr() + "\t"
+                    + (p.isInMatch() || p.isChallenged() ? 0 : 1);
+            if (sb.length() + line.length() > MAX_DATAGRAM) {
+                System.err.println("[CLUSTER] Too many players to announce, the list is cut.");
+                break;
+            }
+            sb.append(line);
+        }
+        String datagram = sb.toString();
+        for (String peer : peers)
+            send(peer, datagram);
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, NodeView> e : directory.entrySet()) {
+            if (now - e.getValue().lastSeen >= EXPIRY_MS && directory.remove(e.getKey(), e.getValue()))
+                lost(e.getKey());
+        }
+    }
+
+    /**
+     * A node stayed silent: its players in a match here leave it, as after a DISCONNECT,
+     * so that their opponents are not left waiting for plays that never come.
+     **/
+    private void lost(String node) {
+        System.out.println("[CLUSTER] Node " + node + " is silent, its players leave their matches here");
+        for (RemotePlayer remote : remotePlayers.values()) {
+            if (!remote.getNode().equals(node)) continue;
+            forget(remote);
+            MatchSession match = remote.getMatchSession();
+            if (match != null)
+                match.receive(MatchEvent.of(match.seatOf(remote), MatchEvent.DISCONNECT));
+        }
+    }
+
+    /* Outgoing messages */
+
+    /**
+     * Challenge a player of another node.
+     * The challenger keeps a proxy of the target as opponent until the other node answers.
+     **/
+    public void challenge(Player challenger, Entry target) throws IOException {
+        RemotePlayer proxy = new RemotePlayer(target.name, target.node, target.mmr, this);
+        challenger.setOpponent(proxy);
+        lobby.reserve(challenger);
+        proxy.challengedBy(challenger);
+    }
+
+    void send(String node, String datagram) {
+        byte[] data = datagram.getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(data, data.length, address(node)));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[CLUSTER] Cannot send to " + node + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param node host:port of a node
+     **/
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    void forget(RemotePlayer player) {
+        remotePlayers.remove(player.getUsername(), player);
+    }
+
+    /* Incoming messages */
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM + 1024];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                // Anyone reaching the port could otherwise write to the players or rate them
+                if (!peerAddresses.contains(packet.getSocketAddress()))
+                    continue;
+                handle(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    System.err.println("[CLUSTER] Receive error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                System.err.println("[CLUSTER] Malformed datagram: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(String datagram) throws IOException {
+        int newline = datagram.indexOf('\n');
+        String header = newline < 0 ? datagram : datagram.substring(0, newline);
+        String payload = newline < 0 ? "" : datagram.substring(newline + 1);
+        String[] parts = header.split(" ");
+
+        switch (parts[0]) {
+            case "DIRECTORY":
+                handleDirectory(parts[1], payload);
+                break;
+            case "CHALLENGE":
+                handleChallenge(parts[1], parts[2], parts[3], Double.parseDouble(payload));
+                break;
+            case "DELIVER": {
+                Player local = lobby.find(parts[1]);
+                if (local != null)
+                    local.send(payload);
+                break;
+            }
+            case "RELEASE": {
+                Player local = lobby.find(parts[1]);
+                if (local != null && !local.isInMatch()) {
+                    local.setOpponent(null);
+                    lobby.release(local);
+                }
+                break;
+            }
+            case "MATCH_START": {
+                Player local = lobby.find(parts[1]);
+                if (local != null)
+                    local.setMatchSession(new RemoteMatch(parts[1], parts[2], this));
+                break;
+            }
+            case "MATCH_EVENT": {
+                RemotePlayer remote = remotePlayers.get(parts[1]);
+                MatchSession match = remote != null ? remote.getMatchSession() : null;
+                long event = match != null ? MatchEvent.parse(match.seatOf(remote), payload) : MatchEvent.NONE;
+                if (event != MatchEvent.NONE) {
+                    match.receive(event);
+                    if (MatchEvent.type(event) == MatchEvent.DISCONNECT)
+                        forget(remote);
+                }
+                break;
+            }
+            case "MATCH_CHAT": {
+                RemotePlayer remote = remotePlayers.get(parts[1]);
+                MatchSession match = remote != null ? remote.getMatchSession() : null;
+                if (match != null)
+                    match.chat(match.seatOf(remote), payload);
+                break;
+            }
+            case "MATCH_END": {
+                int score = Integer.parseInt(parts[2]);
+                int opponentScore = Integer.parseInt(parts[3]);
+                ratings.matchEndedAgainst(parts[1], Double.parseDouble(payload), score, opponentScore);
+                Player local = lobby.find(parts[1]);
+                if (local != null)
+                    System.out.println("[CLUSTER] " + parts[1] + " " + local.handleMatchEnd(score, opponentScore));
+                break;
+            }
+            default:
+                System.err.println("[CLUSTER] Unknown datagram: " + parts[0]);
+        }
+    }
+
+    private void handleDirectory(String node, String payload) {
+        Map<String, Entry> players = new HashMap<>();
+        for (String line : payload.split("\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t");
+            players.put(fields[0], new Entry(fields[0], Double.parseDouble(fields[1]), fields[2].equals("1"), node));
+        }
+        directory.put(node, new NodeView(System.currentTimeMillis(), players));
+    }
+
+    private void handleChallenge(String node, String challenger, String target, double mmr) {
+        RemotePlayer remote = new RemotePlayer(challenger, node, mmr, this);
+        Player local = lobby.find(target);
+        if (local == null || local.isInMatch() || local.isChallenged()) {
+            remote.send("ERROR Target Not Available");
+            remote.setOpponent(null);
+            return;
+        }
+        remotePlayers.put(challenger, remote);
+        lobby.challenge(remote, local);
+    }
+
+    @Override
+    public void close() {
+        gossip.shutdownNow();
+        socket.close();
+    }
+}
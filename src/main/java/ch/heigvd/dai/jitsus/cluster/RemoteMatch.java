@@ -0,0 +1,43 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.cluster;
+
+import ch.heigvd.dai.jitsus.game.MatchEvent;
+import ch.heigvd.dai.jitsus.game.MatchSession;
+import ch.heigvd.dai.jitsus.game.Player;
+
+/**
+ * Stand-in for a match run by another node of the cluster.
+ * The events and the chat of the local player are relayed to that node as text, which gives them the seat of the player.
+ **/
+public class RemoteMatch implements MatchSession {
+    private final String player;
+    private final String node;
+    private final ClusterNode cluster;
+
+    RemoteMatch(String player, String node, ClusterNode cluster) {
+        this.player = player;
+        this.node = node;
+        this.cluster = cluster;
+    }
+
+    /**
+     * The seat is only known by the node running the match.
+     **/
+    @Override
+    public int seatOf(Player player) {
+        return 0;
+    }
+
+    @Override
+    public boolean receive(long event) {
+        cluster.send(node, "MATCH_EVENT " + player + "\n" + MatchEvent.toText(event));
+        return true;
+    }
+
+    @Override
+    public void chat(int seat, String text) {
+        cluster.send(node, "MATCH_CHAT " + player + "\n" + text);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.cluster;
+
+import ch.heigvd.dai.jitsus.game.MatchSession;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+
+/**
+ * Stand-in for a player connected to another node of the cluster.
+ * Everything sent to it is relayed to the node holding its connection.
+ **/
+public class RemotePlayer implements Player {
+    private final String username;
+    private final String node;
+    private final double mmr;
+    private final ClusterNode cluster;
+    private volatile MatchSession matchSession = null;
+    private volatile Player opponent = null;
+
+    RemotePlayer(String username, String node, double mmr, ClusterNode cluster) {
+        this.username = username;
+        this.node = node;
+        this.mmr = mmr;
+        this.cluster = cluster;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the node holding the connection of the player
+     **/
+    String getNode() {
+        return node;
+    }
+
+    @Override
+    public void send(String message) {
+        cluster.send(node, "DELIVER " + username + "\n" + message);
+    }
+
+    @Override
+    public String handleMatchEnd(int score, int opponentScore) {
+        // Its server rates it against the rating of the opponent here
+        Player o = opponent;
+        double opponentMmr = o != null ? o.getMmr() : Ratings.INITIAL;
+        cluster.send(node, "MATCH_END " + username + " " + score + " " + opponentScore + "\n" + opponentMmr);
+        matchSession = null;
+        opponent = null;
+        cluster.forget(this);
+        return "OK";
+    }
+
+    @Override
+    public double getMmr() {
+        return mmr;
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    @Override
+    public boolean isInMatch() {
+        return matchSession != null;
+    }
+
+    @Override
+    public boolean isChallenged() {
+        return opponent != null;
+    }
+
+    @Override
+    public MatchSession getMatchSession() {
+        return matchSession;
+    }
+
+    /**
+     * A match run here starts, the node of the player must send its plays to this one.
+     **/
+    @Override
+    public void setMatchSession(MatchSession session) {
+        this.matchSession = session;
+        if (session != null)
+            cluster.send(node, "MATCH_START " + username + " " + cluster.getNodeId());
+    }
+
+    /**
+     * Clearing the opponent outside of a match means the challenge was declined.
+     **/
+    @Override
+    public void setOpponent(Player opponent) {
+        this.opponent = opponent;
+        if (opponent == null && matchSession == null) {
+            cluster.send(node, "RELEASE " + username);
+            cluster.forget(this);
+        }
+    }
+
+    @Override
+    public void challengedBy(Player challenger) {
+        cluster.send(node, "CHALLENGE " + cluster.getNodeId() + " " + challenger.getUsername() + " " + username
+                + "\n" + challenger.getMmr());
+    }
+}
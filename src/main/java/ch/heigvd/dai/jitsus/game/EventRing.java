@@ -0,0 +1,58 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of the events of one seat, see {@link MatchEvent}.
+ * One thread at a time offers, the thread of the match polls: neither side locks and nothing is allocated.
+ **/
+final class EventRing {
+    private final long[] events;
+    private final int mask;
+    // Next event to poll, written by the match thread only
+    private final AtomicLong head = new AtomicLong();
+    // Next free slot, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    // Last head seen by the producer, read again only when the ring looks full
+    private long headSeen = 0;
+
+    /**
+     * @param capacity rounded up to a power of two
+     **/
+    EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        events = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return false if the ring is full, the event is dropped
+     **/
+    boolean offer(long event) {
+        long t = tail.get();
+        if (t - headSeen == events.length) {
+            headSeen = head.get();
+            if (t - headSeen == events.length)
+                return false;
+        }
+        events[(int) t & mask] = event;
+        // Publishes the event with the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest event, {@link MatchEvent#NONE} if the ring is empty
+     **/
+    long poll() {
+        long h = head.get();
+        if (h == tail.get())
+            return MatchEvent.NONE;
+        long event = events[(int) h & mask];
+        head.lazySet(h + 1);
+        return event;
+    }
+}
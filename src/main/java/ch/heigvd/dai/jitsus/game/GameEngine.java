@@ -0,0 +1,281 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Rule engine of a match, free of any network concern.
+ * The whole state of a match is packed in two longs, copied out with {@link #snapshot} and back with {@link #restore}.
+ * Cards are identified by their index in the sorted deck:
+ * family = index % 4 (Knife : 0, Fist : 1, Acid : 2, Gun : 3), value = index / 4 + 1.
+ **/
+public final class GameEngine {
+    public static final int MAX_ROUND = 13;
+    public static final int DECK_SIZE = 36;
+    public static final int HAND_SIZE = 5;
+    public static final int WINNING_SCORE = 7;
+
+    private static final int FAMILIES = CardSus.family.values().length;
+    private static final CardSus[] CARDS = new CardSus[DECK_SIZE];
+
+    static {
+        for (int card = 0; card < DECK_SIZE; card++)
+            CARDS[card] = new CardSus(CardSus.family.values()[card % FAMILIES], card / FAMILIES + 1);
+    }
+
+    /** Kind of victory of a round, see the rules. **/
+    public enum WinType {
+        AGGRESSIVE,
+        EQUAL_TYPE,
+        OPPOSITE,
+        DRAW
+    }
+
+    /** Final result of a match. **/
+    public enum Outcome {
+        PLAYER1,
+        PLAYER2,
+        TIED,
+        BOTH_LOST
+    }
+
+    private static final WinType[] WIN_TYPES = WinType.values();
+
+    // Layout of the two words holding the whole state of a match:
+    //      word0 : [0, 36[ hand of player1, [36, 40[ round, [40, 48[ score1 + 128, [48, 51[ pending play1 + 1
+    //      word1 : [0, 36[ hand of player2,                  [40, 48[ score2 + 128, [48, 51[ pending play2 + 1
+    private static final long HAND_MASK = (1L << DECK_SIZE) - 1;
+    private static final int ROUND_SHIFT = 36;
+    private static final int SCORE_SHIFT = 40;
+    private static final int SCORE_OFFSET = 128;
+    private static final int PENDING_SHIFT = 48;
+    public static final int WORDS = 2;
+
+    private long word0;
+    private long word1;
+
+    public GameEngine() {
+        reset();
+    }
+
+    /* Card helpers */
+
+    public static int family(int card) {
+        return card % FAMILIES;
+    }
+
+    public static int value(int card) {
+        return card / FAMILIES + 1;
+    }
+
+    /**
+     * @return the display card matching the index.
+     **/
+    public static CardSus cardOf(int card) {
+        return CARDS[card];
+    }
+
+    /**
+     * Take in two cards and resolve their duel, without allocation.
+     * The result packs the win type and the points of each player,
+     * read it back with {@link #points1}, {@link #points2} and {@link #winType}.
+     *
+     * @param c1,c2 card played by each player
+     * @return the packed result of the duel
+     **/
+    public static int duel(int c1, int c2) {
+        int f1 = family(c1);
+        int f2 = family(c2);
+        int v1 = value(c1);
+        int v2 = value(c2);
+
+        // Equal-Type Victory
+        if (f1 == f2)
+            return v1 > v2 ? pack(WinType.EQUAL_TYPE, 1, 0) : pack(WinType.EQUAL_TYPE, 0, 1);
+
+        // Aggressive Victory
+        // the values of the types have been assigned such as:
+        //      if type1 wins then (type1 - type2) mod 4 = 3
+        //      if type2 wins then (type1 - type2) mod 4 = 1
+        switch (Math.floorMod(f1 - f2, FAMILIES)) {
+            case 1:
+                return pack(WinType.AGGRESSIVE, 0, 2);
+            case 3:
+                return pack(WinType.AGGRESSIVE, 2, 0);
+            default:
+                break;
+        }
+
+        // Opposite Victory
+        if (v1 == v2)
+            return pack(WinType.DRAW, 0, 0);
+        return v1 < v2 ? pack(WinType.OPPOSITE, 0, -1) : pack(WinType.OPPOSITE, -1, 0);
+    }
+
+    private static int pack(WinType type, int points1, int points2) {
+        return (type.ordinal() << 8) | ((points1 + 2) << 4) | (points2 + 2);
+    }
+
+    public static int points1(int duel) {
+        return ((duel >> 4) & 0xF) - 2;
+    }
+
+    public static int points2(int duel) {
+        return (duel & 0xF) - 2;
+    }
+
+    public static WinType winType(int duel) {
+        return WIN_TYPES[duel >> 8];
+    }
+
+    /* Match state */
+
+    /**
+     * Start a new match, with empty hands and scores.
+     **/
+    public void reset() {
+        word0 = (long) SCORE_OFFSET << SCORE_SHIFT;
+        word1 = (long) SCORE_OFFSET << SCORE_SHIFT;
+    }
+
+    /**
+     * Copy the state of the match in a buffer.
+     *
+     * @param into buffer to fill with {@link #WORDS} longs
+     * @param offset first position written in the buffer
+     **/
+    public void snapshot(long[] into, int offset) {
+        into[offset] = word0;
+        into[offset + 1] = word1;
+    }
+
+    /**
+     * Restore a state previously saved with {@link #snapshot}.
+     *
+     * @param from buffer holding {@link #WORDS} longs
+     * @param offset first position read in the buffer
+     **/
+    public void restore(long[] from, int offset) {
+        word0 = from[offset];
+        word1 = from[offset + 1];
+    }
+
+    /**
+     * Deal a fresh hand to both players, drawn from the full deck.
+     * Each round starts again from the 36 cards, so the hands are the only part of the deck to keep.
+     *
+     * @param random source of randomness of the calling thread
+     **/
+    public void deal(RandomGenerator random) {
+        long used = 0;
+        long hand1 = 0;
+        int drawn = 0;
+        while (drawn < 2 * HAND_SIZE) {
+            // Two draws out of each random long, keeping only the cards still in the deck.
+            // The multiply-shift bound is off by less than 1e-8, not noticeable in a card game.
+            long bits = random.nextLong();
+            for (int half = 0; half < 2 && drawn < 2 * HAND_SIZE; half++, bits >>>= 32) {
+                long card = 1L << (int) (((bits & 0xFFFFFFFFL) * DECK_SIZE) >>> 32);
+                if ((used & card) != 0)
+                    continue;
+                used |= card;
+                if (drawn++ < HAND_SIZE)
+                    hand1 |= card;
+            }
+        }
+        // A new deal also clears the pending plays
+        word0 = (word0 & ~HAND_MASK & ~(7L << PENDING_SHIFT)) | hand1;
+        word1 = (word1 & ~HAND_MASK & ~(7L << PENDING_SHIFT)) | (used & ~hand1);
+    }
+
+    /**
+     * @param seat 0 for player1, 1 for player2
+     * @return the hand of the player, one bit per card
+     **/
+    public long hand(int seat) {
+        return (seat == 0 ? word0 : word1) & HAND_MASK;
+    }
+
+    /**
+     * The cards of a hand are sorted by value, then by family.
+     *
+     * @param seat 0 for player1, 1 for player2
+     * @param slot position in the hand, from 0 to 4
+     * @return the card held at this position
+     **/
+    public int card(int seat, int slot) {
+        long hand = hand(seat);
+        for (int i = 0; i < slot; i++)
+            hand &= hand - 1;
+        return Long.numberOfTrailingZeros(hand);
+    }
+
+    /**
+     * Keep the card chosen by a player until the other one has chosen too.
+     *
+     * @param seat 0 for player1, 1 for player2
+     * @param slot position of the played card in the hand
+     **/
+    public void choose(int seat, int slot) {
+        if (seat == 0)
+            word0 = (word0 & ~(7L << PENDING_SHIFT)) | ((long) (slot + 1) << PENDING_SHIFT);
+        else
+            word1 = (word1 & ~(7L << PENDING_SHIFT)) | ((long) (slot + 1) << PENDING_SHIFT);
+    }
+
+    /**
+     * @return the position of the card chosen by the player this round, -1 if none yet.
+     **/
+    public int chosen(int seat) {
+        return (int) (((seat == 0 ? word0 : word1) >>> PENDING_SHIFT) & 7) - 1;
+    }
+
+    /**
+     * Resolve the current round with the cards kept by {@link #choose}.
+     *
+     * @return the packed result of the duel
+     **/
+    public int play() {
+        return play(chosen(0), chosen(1));
+    }
+
+    /**
+     * Resolve the current round with the card chosen by each player.
+     *
+     * @param slot1,slot2 position of the played card in each hand
+     * @return the packed result of the duel
+     **/
+    public int play(int slot1, int slot2) {
+        int res = duel(card(0, slot1), card(1, slot2));
+        word0 += ((long) points1(res) << SCORE_SHIFT) + (1L << ROUND_SHIFT);
+        word1 += (long) points2(res) << SCORE_SHIFT;
+        return res;
+    }
+
+    public int score(int seat) {
+        return (int) (((seat == 0 ? word0 : word1) >>> SCORE_SHIFT) & 0xFF) - SCORE_OFFSET;
+    }
+
+    public int round() {
+        return (int) ((word0 >>> ROUND_SHIFT) & 0xF);
+    }
+
+    public boolean isOver() {
+        return round() >= MAX_ROUND || score(0) >= WINNING_SCORE || score(1) >= WINNING_SCORE;
+    }
+
+    /**
+     * @return the result of a finished match, both players lose if nobody reached 7 points.
+     **/
+    public Outcome outcome() {
+        int score1 = score(0);
+        int score2 = score(1);
+        if (score1 < WINNING_SCORE && score2 < WINNING_SCORE)
+            return Outcome.BOTH_LOST;
+        if (score1 == score2)
+            return Outcome.TIED;
+        return score1 > score2 ? Outcome.PLAYER1 : Outcome.PLAYER2;
+    }
+}
@@ -4,153 +4,229 @@
 package ch.heigvd.dai.jitsus.game;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
-import ch.heigvd.dai.jitsus.protocol.ClientHandler;
-
-public class GameManager implements Runnable {
-    private static final int maxRound = 13;
-    private static final int deckSize = 36;
-    private final ClientHandler player1;
-    private final ClientHandler player2; 
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import ch.heigvd.dai.jitsus.spectate.Broadcast;
+import ch.heigvd.dai.jitsus.spectate.Spectator;
+
+public class GameManager implements Runnable, MatchSession {
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    // Matches whose thread has not ended yet, a draining server waits for none to be left
+    private static final AtomicInteger RUNNING = new AtomicInteger();
+    // More than a player can send in a round within the rate limits
+    private static final int EVENTS_PER_SEAT = 64;
+    // Told of the state of every match of the server, to keep a copy of it elsewhere
+    private static volatile MatchJournal journal = MatchJournal.NONE;
+
+    private final long id;
+    private final Player player1;
+    private final Player player2;
     private final String u1;
     private final String u2;
 
-    private final BlockingQueue<QueuedMessage> queue = new LinkedBlockingQueue<>();
-    private final AtomicBoolean running = new AtomicBoolean(true);
+    // Events of each seat, a player has a single connection so each ring has a single producer
+    private final EventRing[] events = {new EventRing(EVENTS_PER_SEAT), new EventRing(EVENTS_PER_SEAT)};
+    // Seats whose player left, bit 0 for player1: set from any thread, so kept out of the rings
+    private final AtomicInteger left = new AtomicInteger();
+    private volatile Thread thread;
+    // Seat polled first for the next event, so that one player cannot starve the other
+    private int turn = 0;
+    private final GameEngine engine = new GameEngine();
+    private final Broadcast spectators = new Broadcast();
+    private final MatchChat chat;
+    private final MatchListener listener;
+    // Copy of the state given to the journal, only used by the match thread
+    private final long[] words = new long[GameEngine.WORDS];
+    // Restored in the middle of a round: the hands are already dealt
+    private boolean resumed = false;
+    // Summary of the match for new spectators, the engine is only read by the match thread
+    private volatile String state;
+
+    public GameManager(Player player1, Player player2) {
+        this(player1, player2, null);
+    }
 
-    public GameManager(ClientHandler player1, ClientHandler player2) {
+    /**
+     * @param listener told when the match is over, may be null
+     **/
+    public GameManager(Player player1, Player player2, MatchListener listener) {
+        this(NEXT_ID.getAndIncrement(), player1, player2, listener);
+    }
+
+    private GameManager(long id, Player player1, Player player2, MatchListener listener) {
+        this.id = id;
         this.player1 = player1;
         this.player2 = player2;
         this.u1 = player1.getUsername();
         this.u2 = player2.getUsername();
+        this.state = "SPECTATING " + u1 + " " + u2 + " 0 0 0";
+        this.chat = new MatchChat(player1, player2, spectators);
+        this.listener = listener;
     }
 
     /**
-     * Receive messages from players
+     * Announce a match to both players and start it in its own thread.
      *
-     * @param from speaking player username
-     * @param message speaking player message
+     * @param challenger player who sent the challenge, player1 of the match
+     * @param challenged player who accepted it, player2 of the match
+     * @return the running session
      **/
-    public void receive(String from, String message) {
-        if (!running.get()) return;
-        queue.offer(new QueuedMessage(from, message));
+    public static GameManager start(Player challenger, Player challenged) {
+        return start(challenger, challenged, null);
     }
 
     /**
-     *  Take in two card descriptions and resolve their duel.
-     *  Knife : 0, Fist : 1, Acid : 2, Gun : 3
-     *
-     * @param nP1,nP2 card played by each player
-     * @return  res[0] : score player1, res[1] score player2
+     * Same as {@link #start(Player, Player)}, with a listener told when the match is over.
      **/
-    private int[] duel(CardSus nP1, CardSus nP2) {
-        int[] res = new int[2];
-
-        // Equal-Type Victory
-        if (nP1.famToInt() == nP2.famToInt()) {
-            if (nP1.getVal() > nP2.getVal()) {
-                res[0] = 1;
-                res[1] = 0;
-            }
-            else {
-                res[0] = 0;
-                res[1] = 1;
-            }
-            return res;
-        }
+    public static GameManager start(Player challenger, Player challenged, MatchListener listener) {
+        String start = "CHALLENGE_START " + challenger.getUsername() + " " + challenged.getUsername();
+        message(challenged, start);
+        message(challenger, start);
 
-        // Aggressive Victory
-        // the values of the types have been assigned such as:
-        //      if type1 wins then (type1 - type2) % 4 = 3
-        //      if type2 wins then (type1 - type2) % 4 = 1
-        switch ((nP1.famToInt() - nP2.famToInt()) % 4) {
-            case 1:
-                res[0] = 0;
-                res[1] = 2;
-                return res;
-            case 3:
-                res[0] = 2;
-                res[1] = 0;
-                return res;
-            default:
-                break;
-        }
+        GameManager session = new GameManager(challenger, challenged, listener);
+        challenged.setMatchSession(session);
+        challenger.setMatchSession(session);
+        journal.matchStarted(session.id, session.u1, session.u2);
 
-        // Opposite Victory
-        if (nP1.getVal() == nP2.getVal()) {
-            // res is init to {0,0} which match the needed return value
-            return res;
-        }
-        if (nP1.getVal() < nP2.getVal()) {
-            res[0] = 0;
-            res[1] = -1;
-        }
-        else {
-            res[0] = -1;
-            res[1] = 0;
-        }
-        return res;
+        RUNNING.incrementAndGet();
+        // A virtual thread: a match waiting for its players holds no platform thread
+        Thread.ofVirtual().name("match-" + session.u1 + "-vs-" + session.u2).start(session);
+        return session;
     }
 
     /**
-     * Creates a deck used in the match.
+     * Continue a match copied from another server, which stopped during it.
      *
-     * @return a new CardSus deck of 36 cards.
+     * @param id identifier of the match on the other server
+     * @param word0,word1 last state of the match, see {@link GameEngine#snapshot}
+     * @param listener told when the match is over, may be null
+     * @return the running session
      **/
-    private CardSus[] createDeck() {
-        int families = CardSus.family.values().length;
-        CardSus[] deck = new CardSus[deckSize];
-
-        for (int v = 1; v <= 9; v++)
-            for (CardSus.family f : CardSus.family.values()) {
-                int index = (v - 1) * families + f.ordinal();
-                deck[index] = new CardSus(f, v);
-            }
+    public static GameManager resume(long id, Player player1, Player player2, long word0, long word1,
+                                     MatchListener listener) {
+        NEXT_ID.accumulateAndGet(id + 1, Math::max);
+        GameManager session = new GameManager(id, player1, player2, listener);
+        session.engine.restore(new long[] {word0, word1}, 0);
+        // Nothing dealt yet: the match starts as a new one
+        session.resumed = session.engine.hand(0) != 0;
+        session.state = "SPECTATING " + session.u1 + " " + session.u2 + " " + session.engine.round()
+                + " " + session.engine.score(0) + " " + session.engine.score(1);
+        player1.setOpponent(player2);
+        player2.setOpponent(player1);
+        player1.setMatchSession(session);
+        player2.setMatchSession(session);
+        journal.matchStarted(id, session.u1, session.u2);
+        journal.matchState(id, word0, word1);
+
+        String resumed = "MATCH_RESUMED " + session.engine.round() + " ";
+        message(player1, resumed + session.engine.score(0) + " " + session.engine.score(1));
+        message(player2, resumed + session.engine.score(1) + " " + session.engine.score(0));
 
-        return deck;
+        RUNNING.incrementAndGet();
+        Thread.ofVirtual().name("match-" + session.u1 + "-vs-" + session.u2).start(session);
+        return session;
     }
 
     /**
-     * Shuffle the deck for the next draw.
-     *
-     * @return the shuffled CardSus deck.
+     * Give the state of every match started from now on to a journal.
+     **/
+    public static void journal(MatchJournal matchJournal) {
+        journal = matchJournal;
+    }
+
+    /**
+     * @return the number of matches started with start() or resume() and not over yet
      **/
-    private static void shuffleDeck(CardSus[] deck) {
-        // Fisher-Yates mix, source Wikipedia pseudo code on 17.11.2025 22:15 Paris time
-        int j;
-        for (int i = deckSize -1 ; i > 0; i--) {
-            j = (int) (Math.random() * (i + 1));
-
-            CardSus s = deck[i];
-            deck[i] = deck[j];
-            deck[j] = s;
+    public static int running() {
+        return RUNNING.get();
+    }
+
+    @Override
+    public int seatOf(Player player) {
+        return player == player1 ? 0 : 1;
+    }
+
+    @Override
+    public boolean receive(long event) {
+        int seat = MatchEvent.seat(event);
+        boolean accepted;
+        if (MatchEvent.type(event) == MatchEvent.DISCONNECT) {
+            left.getAndUpdate(seats -> seats | 1 << seat);
+            accepted = true;
+        } else {
+            accepted = events[seat].offer(event);
         }
+        LockSupport.unpark(thread);
+        return accepted;
+    }
+
+    @Override
+    public void chat(int seat, String text) {
+        chat.post(seat, text);
     }
 
     /**
-     * Lissen for player choice.
+     * @return the last chat messages of the match, for a player back after a RESUME or a spectator
+     **/
+    public String chatHistory() {
+        return chat.history();
+    }
+
+    /**
+     * Wait for the next event of the players, a player who left first.
      *
-     * @return The selected card or an negative value that can be interpreted.
+     * @return the event, {@link MatchEvent#NONE} if the thread was interrupted
      **/
-    private int parseIn(String s) {
-        switch(s.toUpperCase()) {
-            case "1" :
-                return 0;
-            case "2" :
-                return 1;
-            case "3" :
-                return 2;
-            case "4" :
-                return 3;
-            case "5" :
-                return 4;
-            default :
-                return -1;
+    private long next() {
+        while (true) {
+            int seats = left.get();
+            if (seats != 0)
+                return MatchEvent.of(Integer.numberOfTrailingZeros(seats), MatchEvent.DISCONNECT);
+            for (int i = 0; i < 2; i++) {
+                int seat = turn ^ i;
+                long event = events[seat].poll();
+                if (event != MatchEvent.NONE) {
+                    turn = seat ^ 1;
+                    return event;
+                }
+            }
+            if (Thread.interrupted())
+                return MatchEvent.NONE;
+            // Woken by receive, which publishes before unparking
+            LockSupport.park(this);
         }
     }
 
+    /**
+     * Add a spectator to the match, who is sent the next rounds.
+     *
+     * @return the summary of the match, null if it is already over
+     **/
+    public String watch(Spectator spectator) {
+        return spectators.add(spectator) ? state : null;
+    }
+
+
+    /**
+     * Build the answer to a HINT: the suggested card, then the equilibrium probability of each card.
+     *
+     * @param seat 0 for player1, 1 for player2
+     **/
+    private String hint(int seat) {
+        double[] mix = Solver.SHARED.solve(engine.hand(seat), engine.hand(1 - seat));
+        int best = 0;
+        for (int i = 1; i < mix.length; i++)
+            if (mix[i] > mix[best])
+                best = i;
+
+        StringBuilder sb = new StringBuilder("HINT ").append(best + 1);
+        for (double p : mix)
+            sb.append(' ').append(String.format(Locale.ROOT, "%.2f", p));
+        return sb.toString();
+    }
 
     /**
      * Handle loser surrendering
@@ -158,12 +234,14 @@ public class GameManager implements Runnable {
      * @param loser surrendering player
      * @param winner winning player by default
      **/
-    private void surrender(ClientHandler loser, ClientHandler winner){
+    private void surrender(Player loser, Player winner){
         message(winner, "MATCH_END You won the match with 7 points!");
         message(loser, "MATCH_END You lost the match with -7 points!");
+        spectators.close("SPECTATE_END " + loser.getUsername() + " SURRENDERED");
         
-       System.out.println("[GameManager] " + winner.getUsername() + " " + winner.handleMatchEnd(7));
-       System.out.println("[GameManager] " + loser.getUsername()  + " " + loser.handleMatchEnd(-7));
+       System.out.println("[GameManager] " + winner.getUsername() + " " + winner.handleMatchEnd(7, -7));
+       System.out.println("[GameManager] " + loser.getUsername()  + " " + loser.handleMatchEnd(-7, 7));
+        ended(winner == player1 ? 7 : -7, winner == player1 ? -7 : 7);
     }
 
     /**
@@ -171,10 +249,27 @@ public class GameManager implements Runnable {
      *
      * @param winner winning player by default
      **/
-    private void disconnect(ClientHandler winner){
+    private void disconnect(Player winner){
         message(winner, "MATCH_END Your opponent disconnected, you win the match with 7 points!");
+        spectators.close("SPECTATE_END " + (winner == player1 ? u2 : u1) + " DISCONNECTED");
 
-        System.out.println("[GameManager] " + winner.getUsername() + " " + winner.handleMatchEnd(7));
+        System.out.println("[GameManager] " + winner.getUsername() + " " + winner.handleMatchEnd(7, -7));
+        ended(winner == player1 ? 7 : -7, winner == player1 ? -7 : 7);
+    }
+
+    private void ended(int score1, int score2) {
+        journal.matchEnded(id);
+        if (listener == null) return;
+        try {
+            listener.matchEnded(player1, player2, score1, score2);
+        } catch (RuntimeException e) {
+            System.err.println("[GameManager] Error: " + e.getMessage());
+        }
+    }
+
+    private void journalState() {
+        engine.snapshot(words, 0);
+        journal.matchState(id, words[0], words[1]);
     }
 
     /**
@@ -183,7 +278,7 @@ public class GameManager implements Runnable {
      * @param player player to contact
      * @param message message to relay
      **/
-    private void message(ClientHandler player, String message){
+    private static void message(Player player, String message){
         try {
             player.send(message);
         } catch (IOException e) {
@@ -196,83 +291,87 @@ public class GameManager implements Runnable {
      *
      **/
     public void run() {
-        int[]  scores = new int[2];
-        CardSus[] deck = createDeck();
-        int round;
+        try {
+            play();
+        } finally {
+            // After ended(): the next match of a tournament is already running
+            RUNNING.decrementAndGet();
+        }
+    }
 
-        for (round = 0; (round < maxRound) && (scores [0] < 7) && (scores[1] < 7); round++){
-            shuffleDeck(deck);
+    private void play() {
+        thread = Thread.currentThread();
+        while (!engine.isOver()) {
+            if (resumed) {
+                resumed = false;
+            } else {
+                engine.deal(ThreadLocalRandom.current());
+                journalState();
+            }
             // Announce hands
             message(player1, "Please select a card by entering it's number from 1 to 5.");
-            for (int i = 0; i < 5; i++){
-                CardSus card = deck[i];
+            for (int i = 0; i < GameEngine.HAND_SIZE; i++){
+                CardSus card = GameEngine.cardOf(engine.card(0, i));
                 message(player1, "card " + (i + 1) + ": " + card.getVal() + " of " + card.familyToString());
             }
 
             message(player2, "Please select a card by entering it's number from 1 to 5.");
-            for (int i = 5; i < 10; i++){
-                CardSus card = deck[i];
-                message(player2, "card " + (i - 4) + ": " + card.getVal() + " of " + card.familyToString());
+            for (int i = 0; i < GameEngine.HAND_SIZE; i++){
+                CardSus card = GameEngine.cardOf(engine.card(1, i));
+                message(player2, "card " + (i + 1) + ": " + card.getVal() + " of " + card.familyToString());
             }
+            player1.onDeal(this, engine, 0);
+            player2.onDeal(this, engine, 1);
 
             // Selection of cards
-            int nP1 = -1;
-            int nP2 = -1;
-
-            while (nP1 < 0 || nP2 < 0){
-                QueuedMessage qm;
-                try {
-                    qm = queue.take();
-                } catch (InterruptedException e) {
-                    System.err.println("[GameManager] Error: " + e.getMessage());
+            while (engine.chosen(0) < 0 || engine.chosen(1) < 0){
+                long event = next();
+                if (event == MatchEvent.NONE) {
+                    System.err.println("[GameManager] Error: interrupted");
                     return;
                 }
+                int seat = MatchEvent.seat(event);
+                Player from = seat == 0 ? player1 : player2;
+                Player other = seat == 0 ? player2 : player1;
 
-                
-                if (qm.from.equals(u1)) {
-                    if (nP1 < 0) {
-                        nP1 = parseIn(qm.message);
-                        if (qm.message.equals("SURRENDER")) {
-                            surrender(player1, player2);
-                            return;
+                switch (MatchEvent.type(event)) {
+                    case MatchEvent.HINT -> message(from, hint(seat));
+                    case MatchEvent.PLAY -> {
+                        if (engine.chosen(seat) < 0) {
+                            engine.choose(seat, MatchEvent.card(event));
+                            journalState();
                         }
                     }
-                }
-                if (qm.from.equals(u2)) {
-                    if (nP2 < 0 ) {
-                        nP2 = parseIn(qm.message);
-                        if (qm.message.equals("SURRENDER")) {
-                            surrender(player2, player1);
+                    case MatchEvent.SURRENDER -> {
+                        // Only before the player chose its card, as a choice of the round
+                        if (engine.chosen(seat) < 0) {
+                            surrender(from, other);
                             return;
                         }
                     }
-                }
-                if (qm.message.equals("DISCONNECT")) {
-                    if (qm.from.equals(u1)) {
-                        disconnect(player2);
-                    } else if (qm.from.equals(u2)) {
-                        disconnect(player1);
+                    case MatchEvent.DISCONNECT -> {
+                        disconnect(other);
+                        return;
+                    }
+                    default -> {
                     }
-                    return;
                 }
             }
             
             // Resolve the duel
-            CardSus cardP1 = deck[nP1];
-            CardSus cardP2 = deck[nP2 + 5];
+            CardSus cardP1 = GameEngine.cardOf(engine.card(0, engine.chosen(0)));
+            CardSus cardP2 = GameEngine.cardOf(engine.card(1, engine.chosen(1)));
             String m1;
             String m2;
 
-            int[] res = duel(cardP1, cardP2);
-            scores[0] += res[0];
-            scores[1] += res[1];
-            if (res[0] == res[1]){
+            int res = engine.play();
+            if (GameEngine.points1(res) == GameEngine.points2(res)){
                 m1 = "tied";
                 m2 = "tied";
             }
             else {
                 
-                if (res[0] > res[1]) {
+                if (GameEngine.points1(res) > GameEngine.points2(res)) {
                     m1 = "won";
                     m2 = "lost";
                 }
@@ -281,46 +380,37 @@ public class GameManager implements Runnable {
                     m2 = "won";
                 }
             }
-            message(player1, "ROUND_END You " + m1 + " against : " + cardP2.getVal() + " of " + cardP2.familyToString() + "\nNow your score is " + scores[0]);
-            message(player2, "ROUND_END You " + m2 + " against : " + cardP1.getVal() + " of " + cardP1.familyToString() + "\nNow your score is " + scores[1]);
+            message(player1, "ROUND_END You " + m1 + " against : " + cardP2.getVal() + " of " + cardP2.familyToString() + "\nNow your score is " + engine.score(0));
+            message(player2, "ROUND_END You " + m2 + " against : " + cardP1.getVal() + " of " + cardP1.familyToString() + "\nNow your score is " + engine.score(1));
+            state = "SPECTATING " + u1 + " " + u2 + " " + engine.round() + " " + engine.score(0) + " " + engine.score(1);
+            spectators.publish("SPECTATE_ROUND_END " + u1 + " " + cardP1 + " " + u2 + " " + cardP2 + " " + engine.score(0) + " " + engine.score(1));
         }
 
         // Releasing scores
         String m1;
         String m2;
-        if ((round == 13) && (scores[0] < 7) && (scores[1] < 7)) {
-            m1 = "lost";
-            m2 = "lost";
-        }
-        else {
-            if (scores[0] == scores[1]) {
+        switch (engine.outcome()) {
+            case BOTH_LOST:
+                m1 = "lost";
+                m2 = "lost";
+                break;
+            case TIED:
                 m1 = "tied";
                 m2 = "tied";
-            }
-            else{
-                if (scores[0] > scores[1]) {
-                    m1 = "won";
-                    m2 = "lost";
-                }
-                else {
-                    m1 = "lost";
-                    m2 = "won";
-                }
-            }
-        }
-        message(player1, "MATCH_END You " + m1 + " the match with " + scores[0] + " points!");
-        message(player2, "MATCH_END You " + m2 + " the match with " + scores[1] + " points!");
-        message(player1, "[GameManager] " + player1.handleMatchEnd(scores[0]));
-        message(player2, "[GameManager] " + player2.handleMatchEnd(scores[1]));
-    }
-
-    // Internal class for communication
-    private static class QueuedMessage {
-        final String from;
-        final String message;
-        QueuedMessage(String from, String message) {
-            this.from = from;
-            this.message = message;
+                break;
+            case PLAYER1:
+                m1 = "won";
+                m2 = "lost";
+                break;
+            default:
+                m1 = "lost";
+                m2 = "won";
         }
+        spectators.close("SPECTATE_END " + u1 + " " + engine.score(0) + " " + u2 + " " + engine.score(1));
+        message(player1, "MATCH_END You " + m1 + " the match with " + engine.score(0) + " points!");
+        message(player2, "MATCH_END You " + m2 + " the match with " + engine.score(1) + " points!");
+        message(player1, "[GameManager] " + player1.handleMatchEnd(engine.score(0), engine.score(1)));
+        message(player2, "[GameManager] " + player2.handleMatchEnd(engine.score(1), engine.score(0)));
+        ended(engine.score(0), engine.score(1));
     }
 }
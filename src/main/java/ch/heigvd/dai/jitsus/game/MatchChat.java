@@ -0,0 +1,112 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import ch.heigvd.dai.jitsus.spectate.Broadcast;
+
+/**
+ * Chat of a match, relayed apart from the match thread so that a chatty player never delays a round.
+ *
+ * The messages are kept in a bounded history, read again by a player back after a RESUME or by a spectator.
+ * A virtual thread relays them a short while after the first one of a burst: the whole burst is one write
+ * to each recipient. Messages of a burst past the size of the history are dropped.
+ **/
+final class MatchChat {
+    static final int HISTORY_SIZE = 32;
+    // Time a burst of messages is gathered before being relayed
+    private static final long COALESCE_MS = 50;
+    private static final ExecutorService RELAYS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Player[] players;
+    private final Broadcast spectators;
+
+    // Guarded by this
+    private final String[] history = new String[HISTORY_SIZE];
+    private final int[] seats = new int[HISTORY_SIZE];
+    private long written = 0;
+    private long relayed = 0;
+    private boolean relaying = false;
+
+    MatchChat(Player player1, Player player2, Broadcast spectators) {
+        this.players = new Player[] {player1, player2};
+        this.spectators = spectators;
+    }
+
+    /**
+     * Keep a message of a player, relayed soon to its opponent and to the spectators.
+     *
+     * @param seat 0 for player1, 1 for player2
+     **/
+    void post(int seat, String text) {
+        String line = "MSG_FROM " + players[seat].getUsername() + " : " + text;
+        synchronized (this) {
+            int slot = (int) (written++ % HISTORY_SIZE);
+            history[slot] = line;
+            seats[slot] = seat;
+            if (relaying) return;
+            relaying = true;
+        }
+        RELAYS.execute(this::relay);
+    }
+
+    /**
+     * @return MATCH_HISTORY with the number of messages kept, followed by one line per message
+     **/
+    synchronized String history() {
+        long first = Math.max(0, written - HISTORY_SIZE);
+        StringBuilder sb = new StringBuilder("MATCH_HISTORY ").append(written - first);
+        for (long i = first; i < written; i++)
+            sb.append('\n').append(history[(int) (i % HISTORY_SIZE)]);
+        return sb.toString();
+    }
+
+    /**
+     * Relay the bursts until none is left. A single relay runs at a time, so the messages keep their order.
+     **/
+    private void relay() {
+        while (true) {
+            try {
+                Thread.sleep(COALESCE_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            StringBuilder[] to = {new StringBuilder(), new StringBuilder()};
+            StringBuilder watched = new StringBuilder();
+            synchronized (this) {
+                for (long i = Math.max(relayed, written - HISTORY_SIZE); i < written; i++) {
+                    int slot = (int) (i % HISTORY_SIZE);
+                    // Not sent back to its author
+                    append(to[1 - seats[slot]], history[slot]);
+                    append(watched, "SPECTATE_").append(history[slot]);
+                }
+                relayed = written;
+            }
+            for (int seat = 0; seat < 2; seat++) {
+                if (to[seat].isEmpty()) continue;
+                try {
+                    players[seat].send(to[seat].toString());
+                } catch (IOException e) {
+                    System.err.println("[MatchChat] Error: " + e.getMessage());
+                }
+            }
+            if (!watched.isEmpty())
+                spectators.publish(watched.toString());
+            synchronized (this) {
+                if (relayed == written) {
+                    relaying = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static StringBuilder append(StringBuilder lines, String line) {
+        if (!lines.isEmpty())
+            lines.append('\n');
+        return lines.append(line);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+/**
+ * Event sent by a player to its match, packed in a long: the seat, the type and the card.
+ * The seat is 0 for player1 and 1 for player2, the card is the position in the hand, from 0.
+ *
+ *      bits 0-7    card, PLAY only
+ *      bits 8-15   type
+ *      bit 16      seat
+ **/
+public final class MatchEvent {
+    public static final int PLAY = 1;
+    public static final int HINT = 2;
+    public static final int SURRENDER = 3;
+    public static final int DISCONNECT = 4;
+
+    // Not an event: no event waiting, or a text that is not one
+    public static final long NONE = -1;
+
+    private MatchEvent() {
+    }
+
+    public static long play(int seat, int card) {
+        return pack(seat, PLAY, card);
+    }
+
+    public static long of(int seat, int type) {
+        return pack(seat, type, 0);
+    }
+
+    private static long pack(int seat, int type, int card) {
+        return ((long) seat << 16) | ((long) type << 8) | card;
+    }
+
+    public static int seat(long event) {
+        return (int) (event >>> 16) & 1;
+    }
+
+    public static int type(long event) {
+        return (int) (event >>> 8) & 0xff;
+    }
+
+    public static int card(long event) {
+        return (int) event & 0xff;
+    }
+
+    /**
+     * Read an event from its text, as sent between the nodes of a cluster.
+     *
+     * @return the event, {@link #NONE} if the text is not one
+     **/
+    public static long parse(int seat, String text) {
+        return switch (text) {
+            case "1", "2", "3", "4", "5" -> play(seat, text.charAt(0) - '1');
+            case "HINT" -> of(seat, HINT);
+            case "SURRENDER" -> of(seat, SURRENDER);
+            case "DISCONNECT" -> of(seat, DISCONNECT);
+            default -> NONE;
+        };
+    }
+
+    /**
+     * @return the text of the event, read back by {@link #parse}
+     **/
+    public static String toText(long event) {
+        return switch (type(event)) {
+            case PLAY -> String.valueOf(card(event) + 1);
+            case HINT -> "HINT";
+            case SURRENDER -> "SURRENDER";
+            default -> "DISCONNECT";
+        };
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+/**
+ * Told of every change of the state of a match, so that a copy of it can be kept outside of the server.
+ * The state is the one of {@link GameEngine}, packed in {@link GameEngine#WORDS} longs.
+ **/
+public interface MatchJournal {
+    MatchJournal NONE = new MatchJournal() {
+        @Override
+        public void matchStarted(long id, String player1, String player2) {
+        }
+
+        @Override
+        public void matchState(long id, long word0, long word1) {
+        }
+
+        @Override
+        public void matchEnded(long id) {
+        }
+    };
+
+    void matchStarted(long id, String player1, String player2);
+
+    /**
+     * Called after each deal and each card chosen.
+     **/
+    void matchState(long id, long word0, long word1);
+
+    void matchEnded(long id);
+}
@@ -0,0 +1,26 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+/**
+ * Told by the GameManager when its match is over, after both players were given their score.
+ **/
+@FunctionalInterface
+public interface MatchListener {
+    /**
+     * @param score1 points of player1, 7 or -7 when the match ended by a surrender or a disconnection
+     * @param score2 points of player2
+     **/
+    void matchEnded(Player player1, Player player2, int score1, int score2);
+
+    /**
+     * @return a listener telling this one, then the next one
+     **/
+    default MatchListener andThen(MatchListener next) {
+        return (player1, player2, score1, score2) -> {
+            matchEnded(player1, player2, score1, score2);
+            next.matchEnded(player1, player2, score1, score2);
+        };
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+/**
+ * Match a player takes part in, either run here by a GameManager
+ * or run by another node of the cluster.
+ **/
+public interface MatchSession {
+    /**
+     * Asked once, when the player is given the session.
+     *
+     * @return the seat of the player, 0 for player1 and 1 for player2
+     **/
+    int seatOf(Player player);
+
+    /**
+     * Receive an event from a player.
+     *
+     * @param event built by {@link MatchEvent} with the seat of the player
+     * @return false if the event was dropped, too many events of the player are waiting
+     **/
+    boolean receive(long event);
+
+    /**
+     * Relay a chat message of a player to its opponent, apart from the events so that it never delays them.
+     *
+     * @param seat seat of the player, as given by {@link #seatOf}
+     **/
+    void chat(int seat, String text);
+}
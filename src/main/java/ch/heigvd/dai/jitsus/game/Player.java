@@ -0,0 +1,79 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+import java.io.IOException;
+
+/**
+ * Anyone who can sit in the lobby and play a match:
+ * a client connected over TCP or a bot living in the server.
+ **/
+public interface Player {
+    /**
+     * @return the name of the player, null if not authenticated yet.
+     **/
+    String getUsername();
+
+    /**
+     * Deliver a message of the match or of the lobby to the player.
+     **/
+    void send(String message) throws IOException;
+
+    /**
+     * Called by the GameManager once the match is over.
+     *
+     * @param score points made by the player during the match
+     * @param opponentScore points made by its opponent
+     * @return a status to log
+     **/
+    String handleMatchEnd(int score, int opponentScore);
+
+    /**
+     * @return the rating of the player, see {@link ch.heigvd.dai.jitsus.rating.Ratings}
+     **/
+    double getMmr();
+
+    boolean isInMatch();
+
+    boolean isChallenged();
+
+    /**
+     * @return the match the player takes part in, null if none.
+     **/
+    MatchSession getMatchSession();
+
+    void setMatchSession(MatchSession session);
+
+    void setOpponent(Player opponent);
+
+    /**
+     * Receive a challenge from another player, who already set this player as opponent.
+     **/
+    void challengedBy(Player challenger) throws IOException;
+
+    /**
+     * @return the measured round trip time to the player in nanoseconds, 0 when it has no network delay
+     **/
+    default long getRttNanos() {
+        return 0;
+    }
+
+    /**
+     * @return true if the player is rated by another server of the cluster
+     **/
+    default boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * Called by the GameManager once the hands of a round are dealt.
+     * Players who do not answer through the network may choose their card here.
+     *
+     * @param session match being played
+     * @param engine state of the match, not to be kept after the call
+     * @param seat 0 for player1, 1 for player2
+     **/
+    default void onDeal(GameManager session, GameEngine engine, int seat) {
+    }
+}
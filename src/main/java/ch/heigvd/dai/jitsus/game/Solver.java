@@ -0,0 +1,226 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.game;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Computes the optimal way to play a round when both hands are known.
+ * A round is a zero-sum game on the score gap between the players,
+ * its equilibrium is a mixed strategy found with a small simplex.
+ *
+ * Results are memoized in a bounded, lock-free cache keyed by a canonical encoding of the hand pair:
+ * turning the families around the cycle (Knife, Fist, Acid, Gun) and renumbering the values
+ * while keeping their order do not change any duel, so all those hand pairs share one entry.
+ **/
+public final class Solver {
+    public static final Solver SHARED = new Solver(1 << 16);
+
+    private static final int N = GameEngine.HAND_SIZE;
+    private static final int FAMILIES = 4;
+    // Lowest gap of a duel is -2, the simplex needs a positive game
+    private static final int SHIFT = 3;
+
+    private final Entry[] table;
+    private final int mask;
+
+    /**
+     * @param capacity maximal number of cached hand pairs, rounded up to a power of two
+     **/
+    public Solver(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        table = new Entry[size];
+        mask = size - 1;
+    }
+
+    // Immutable, so it can be published through the plain array
+    private record Entry(long key, double[] mix) {
+    }
+
+    /**
+     * Equilibrium strategy of the player holding the first hand.
+     *
+     * @param own hand of the player, one bit per card
+     * @param other hand of the opponent, one bit per card
+     * @return the probability to play each card of the own hand, in hand order
+     **/
+    public double[] solve(long own, long other) {
+        int[] ownCards = cards(own);
+        int[] otherCards = cards(other);
+
+        // Renumber the values in play, keeping their order
+        int values = 0;
+        for (int i = 0; i < N; i++)
+            values |= (1 << GameEngine.value(ownCards[i])) | (1 << GameEngine.value(otherCards[i]));
+
+        // Keep the family rotation giving the smallest key
+        long key = Long.MAX_VALUE;
+        int[] canonical = new int[N];
+        int[] bestCanonical = new int[N];
+        for (int rotation = 0; rotation < FAMILIES; rotation++) {
+            long k = encode(ownCards, values, rotation, canonical) | encode(otherCards, values, rotation, null) << 30;
+            if (k < key) {
+                key = k;
+                System.arraycopy(canonical, 0, bestCanonical, 0, N);
+            }
+        }
+
+        int index = (int) mix(key) & mask;
+        Entry entry = table[index];
+        if (entry == null || entry.key != key) {
+            entry = new Entry(key, equilibrium(decode(key), decode(key >>> 30)));
+            table[index] = entry;
+        }
+
+        // Map the canonical hand order back to the hand order of the player
+        double[] result = new double[N];
+        for (int i = 0; i < N; i++)
+            result[i] = entry.mix[bestCanonical[i]];
+        return result;
+    }
+
+    /**
+     * Fill the cache with the hands of random rounds.
+     *
+     * @param deals number of rounds to solve
+     * @param random source of the deals
+     **/
+    public void precompute(int deals, RandomGenerator random) {
+        GameEngine engine = new GameEngine();
+        for (int i = 0; i < deals; i++) {
+            engine.deal(random);
+            solve(engine.hand(0), engine.hand(1));
+            solve(engine.hand(1), engine.hand(0));
+        }
+    }
+
+    /**
+     * Pick a card following the equilibrium strategy.
+     *
+     * @return the position of the card in the own hand
+     **/
+    public int pick(long own, long other, RandomGenerator random) {
+        double[] mix = solve(own, other);
+        double r = random.nextDouble();
+        for (int i = 0; i < N - 1; i++) {
+            r -= mix[i];
+            if (r < 0)
+                return i;
+        }
+        return N - 1;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Entry entry : table)
+            if (entry != null)
+                size++;
+        return size;
+    }
+
+    private static int[] cards(long hand) {
+        int[] cards = new int[N];
+        for (int i = 0; i < N; i++) {
+            cards[i] = Long.numberOfTrailingZeros(hand);
+            hand &= hand - 1;
+        }
+        return cards;
+    }
+
+    /**
+     * Encode a transformed hand as its five sorted cards on 6 bits each.
+     *
+     * @param positions if not null, receives the sorted position of each card of the hand
+     **/
+    private static long encode(int[] cards, int values, int rotation, int[] positions) {
+        int[] transformed = new int[N];
+        for (int i = 0; i < N; i++) {
+            int value = Integer.bitCount(values & ((1 << GameEngine.value(cards[i])) - 1));
+            int family = (GameEngine.family(cards[i]) + rotation) % FAMILIES;
+            transformed[i] = value * FAMILIES + family;
+        }
+
+        long code = 0;
+        int previous = -1;
+        for (int rank = 0; rank < N; rank++) {
+            int smallest = -1;
+            for (int i = 0; i < N; i++)
+                if (transformed[i] > previous && (smallest < 0 || transformed[i] < transformed[smallest]))
+                    smallest = i;
+            previous = transformed[smallest];
+            code |= (long) previous << (6 * rank);
+            if (positions != null)
+                positions[smallest] = rank;
+        }
+        return code;
+    }
+
+    private static int[] decode(long code) {
+        int[] cards = new int[N];
+        for (int i = 0; i < N; i++)
+            cards[i] = (int) (code >>> (6 * i)) & 0x3F;
+        return cards;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Solve the matrix game with the simplex method on the opponent side:
+     * maximize sum(y) with A y <= 1 and y >= 0, the strategy of the player is read from the dual.
+     **/
+    private static double[] equilibrium(int[] own, int[] other) {
+        double[][] t = new double[N + 1][2 * N + 1];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                int res = GameEngine.duel(own[i], other[j]);
+                t[i][j] = GameEngine.points1(res) - GameEngine.points2(res) + SHIFT;
+            }
+            t[i][N + i] = 1;
+            t[i][2 * N] = 1;
+        }
+        for (int j = 0; j < N; j++)
+            t[N][j] = -1;
+
+        while (true) {
+            // Bland's rule, first improving column then first smallest ratio, cannot cycle
+            int col = -1;
+            for (int j = 0; j < 2 * N && col < 0; j++)
+                if (t[N][j] < -1e-12)
+                    col = j;
+            if (col < 0)
+                break;
+
+            int row = -1;
+            for (int i = 0; i < N; i++)
+                if (t[i][col] > 1e-12 && (row < 0 || t[i][2 * N] / t[i][col] < t[row][2 * N] / t[row][col]))
+                    row = i;
+
+            double pivot = t[row][col];
+            for (int j = 0; j <= 2 * N; j++)
+                t[row][j] /= pivot;
+            for (int i = 0; i <= N; i++) {
+                if (i == row || t[i][col] == 0)
+                    continue;
+                double factor = t[i][col];
+                for (int j = 0; j <= 2 * N; j++)
+                    t[i][j] -= factor * t[row][j];
+            }
+        }
+
+        double total = 0;
+        double[] mix = new double[N];
+        for (int i = 0; i < N; i++) {
+            mix[i] = Math.max(t[N][N + i], 0);
+            total += mix[i];
+        }
+        for (int i = 0; i < N; i++)
+            mix[i] /= total;
+        return mix;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.lobby;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import ch.heigvd.dai.jitsus.game.Player;
+
+/**
+ * Players waiting on the server, split in shards by username hash.
+ * Each shard owns its players and the index of those who can be challenged,
+ * and applies its changes alone on its mailbox thread.
+ * A challenge is sent to the shard of the target, which reserves it without any shared lock.
+ **/
+public class Lobby {
+    private final LobbyShard[] shards;
+    // Striped counter, connects and disconnects do not fight over one cache line
+    private final LongAdder connections = new LongAdder();
+
+    public Lobby(int shardCount) {
+        shards = new LobbyShard[Math.max(shardCount, 1)];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new LobbyShard(i);
+    }
+
+    private LobbyShard shardOf(String name) {
+        int h = name.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+
+    /* Connections */
+
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    public int connections() {
+        return connections.intValue();
+    }
+
+    /* Players */
+
+    /**
+     * Add a player to the lobby, as available.
+     *
+     * @return false if the name is already used
+     **/
+    public boolean register(String name, Player player) {
+        LobbyShard shard = shardOf(name);
+        return shard.ask(() -> shard.add(name, player));
+    }
+
+    public void unregister(String name, Player player) {
+        LobbyShard shard = shardOf(name);
+        shard.post(() -> shard.remove(name, player));
+    }
+
+    public Player find(String name) {
+        return shardOf(name).get(name);
+    }
+
+    /**
+     * Put a player back in the index of available players, once its challenge or match is over.
+     **/
+    public void release(Player player) {
+        String name = player.getUsername();
+        if (name == null) return;
+        LobbyShard shard = shardOf(name);
+        shard.post(() -> shard.release(name, player));
+    }
+
+    /**
+     * Take a player out of the index of available players, when it challenges someone outside this lobby.
+     **/
+    public void reserve(Player player) {
+        LobbyShard shard = shardOf(player.getUsername());
+        shard.post(() -> shard.reserve(player));
+    }
+
+    /**
+     * Take a player out of the index of available players and wait for the answer of its shard.
+     *
+     * @return false if the player was not available
+     **/
+    public boolean claim(Player player) {
+        LobbyShard shard = shardOf(player.getUsername());
+        return shard.ask(() -> shard.reserve(player));
+    }
+
+    /**
+     * Send a challenge to the shard of the target, which reserves it then delivers the request.
+     * If another challenge got the target first, the challenger is released and receives an error instead.
+     *
+     * The challenger must already be reserved, with {@link #claim} from the calling thread so that no shard
+     * waits for another: a player just challenged or reserved cannot end up in a second pairing.
+     * A challenger of another node was reserved by its own lobby.
+     **/
+    public void challenge(Player challenger, Player target) {
+        boolean local = find(challenger.getUsername()) == challenger;
+        LobbyShard targetShard = shardOf(target.getUsername());
+        targetShard.post(() -> {
+            try {
+                if (!targetShard.reserve(target)) {
+                    if (local)
+                        release(challenger);
+                    challenger.send("ERROR Target Not Available");
+                    return;
+                }
+                challenger.setOpponent(target);
+                target.challengedBy(challenger);
+            } catch (IOException e) {
+                System.err.println("[LOBBY] Error: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Visit the players who can be challenged, shard after shard, without lock.
+     **/
+    public void forEachAvailable(Consumer<Player> action) {
+        for (LobbyShard shard : shards)
+            shard.available().forEach(action);
+    }
+
+    /**
+     * @return a copy of all the players of the lobby
+     **/
+    public List<Player> players() {
+        List<Player> players = new ArrayList<>();
+        for (LobbyShard shard : shards)
+            shard.players().forEach(players::add);
+        return players;
+    }
+
+    public int size() {
+        int size = 0;
+        for (LobbyShard shard : shards)
+            size += shard.size();
+        return size;
+    }
+
+    public void shutdown() {
+        for (LobbyShard shard : shards)
+            shard.shutdown();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.lobby;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import ch.heigvd.dai.jitsus.game.Player;
+
+/**
+ * Part of the lobby owning the players whose name hashes to it.
+ * Every change of the shard runs on its own mailbox thread, one after the other,
+ * so the shard needs no lock. Other threads only read its maps.
+ **/
+final class LobbyShard {
+    private final Map<String, Player> players = new ConcurrentHashMap<>();
+    // Index of the players who can be challenged
+    private final Set<Player> available = ConcurrentHashMap.newKeySet();
+    private final ExecutorService mailbox;
+
+    LobbyShard(int index) {
+        mailbox = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "lobby-shard-" + index);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Run a change of the shard on its mailbox thread.
+     **/
+    void post(Runnable task) {
+        try {
+            mailbox.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // The lobby is shutting down
+        }
+    }
+
+    /**
+     * Run a change of the shard on its mailbox thread and wait for its answer.
+     **/
+    <T> T ask(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, mailbox).join();
+    }
+
+    /* Called from the mailbox thread only */
+
+    boolean add(String name, Player player) {
+        if (players.putIfAbsent(name, player) != null)
+            return false;
+        available.add(player);
+        return true;
+    }
+
+    void remove(String name, Player player) {
+        players.remove(name, player);
+        available.remove(player);
+    }
+
+    boolean reserve(Player player) {
+        return available.remove(player);
+    }
+
+    void release(String name, Player player) {
+        if (players.get(name) == player && !player.isInMatch() && !player.isChallenged())
+            available.add(player);
+    }
+
+    /* Readable from any thread */
+
+    Player get(String name) {
+        return players.get(name);
+    }
+
+    Iterable<Player> players() {
+        return players.values();
+    }
+
+    Iterable<Player> available() {
+        return available;
+    }
+
+    int size() {
+        return players.size();
+    }
+
+    void shutdown() {
+        mailbox.shutdown();
+    }
+}
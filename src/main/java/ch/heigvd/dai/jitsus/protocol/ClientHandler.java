@@ -1,28 +1,85 @@
 package ch.heigvd.dai.jitsus.protocol;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import ch.heigvd.dai.jitsus.cluster.ClusterNode;
 import ch.heigvd.dai.jitsus.game.GameManager;
-
-public class ClientHandler implements Runnable {
+import ch.heigvd.dai.jitsus.game.MatchEvent;
+import ch.heigvd.dai.jitsus.game.MatchSession;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+import ch.heigvd.dai.jitsus.replica.Replicator;
+import ch.heigvd.dai.jitsus.server.BufferPool;
+import ch.heigvd.dai.jitsus.server.Drain;
+import ch.heigvd.dai.jitsus.server.Heartbeat;
+import ch.heigvd.dai.jitsus.server.RateLimiter;
+import ch.heigvd.dai.jitsus.server.RateLimits;
+import ch.heigvd.dai.jitsus.server.ServerContext;
+import ch.heigvd.dai.jitsus.server.ServerMetrics;
+import ch.heigvd.dai.jitsus.server.Sessions;
+import ch.heigvd.dai.jitsus.spectate.Spectator;
+import ch.heigvd.dai.jitsus.tournament.Tournament;
+import ch.heigvd.dai.jitsus.tournament.Tournaments;
+
+public class ClientHandler implements Runnable, Player, Heartbeat.Connection, Spectator.Viewer {
+    // Messages kept to be sent again after a RESUME, the ring grows up to its size when they are sent
+    private static final int REPLAY_FIRST = 16;
+    private static final int REPLAY_SIZE = 256;
+    // Players listed by LEADERBOARD, by default and at most
+    private static final int LEADERBOARD_SIZE = 10;
+    private static final int LEADERBOARD_MAX = 100;
 
     private final Socket clientSocket;
-    private final Map<String, ClientHandler> connectedPlayers;
-    private final AtomicInteger connectedClients;
-    private volatile GameManager matchSession = null;
-
-    private BufferedReader in;
-    private BufferedWriter out;
+    private final Lobby lobby;
+    private final ClusterNode cluster;
+    private final ServerMetrics metrics;
+    private final Heartbeat heartbeat;
+    private final Tournaments tournaments;
+    private final Sessions sessions;
+    private final Ratings ratings;
+    private final Replicator replicator;
+    private final BufferPool buffers;
+    private final Drain drain;
+    private volatile MatchSession matchSession = null;
+    // Seat in the match, given by the session when the match starts
+    private volatile int matchSeat = 0;
+
+    // Rate limits of this connection, the strikes count the throttled commands
+    private final RateLimiter commandLimiter;
+    private final RateLimiter getPlayersLimiter;
+    private final RateLimiter challengeLimiter;
+    private final RateLimiter matchMsgLimiter;
+    private final RateLimiter strikeLimiter;
+
+    // Current connection of the session, replaced by a RESUME, readable without the lock to reap it
+    private volatile Socket connection;
+    private LineReader in;
+    private LineWriter out;
+
+    // Session, guarded by this
+    private volatile String sessionToken = null;
+    private ScheduledFuture<?> grace = null;
+    private boolean ended = false;
+    private Object[] replay = new Object[REPLAY_FIRST];
+    private long[] replayEnd = new long[REPLAY_FIRST];
+    private long messagesSent = 0;
+    private long linesSent = 0;
+    private long linesAtDetach = 0;
+    // Session taken over from another server, whose line count is not known before its RESUME
+    private boolean restored = false;
     private volatile String username = null;
-    private volatile ClientHandler opponent = null;
+    private volatile Player opponent = null;
     private volatile boolean running = true;
+    private volatile Spectator spectating = null;
+    // Match watched, for its chat history
+    private volatile GameManager watched = null;
 
-    // MMR attributes
-    private AtomicInteger score = new AtomicInteger(0);
-    private AtomicInteger gamesPlayed = new AtomicInteger(0);
+    // Liveness, updated by every line received
+    private volatile long lastHeard = System.nanoTime();
+    private volatile long rttNanos = 0;
 
     // Error codes enum
     private enum ErrorCodes {
@@ -39,6 +96,7 @@ public class ClientHandler implements Runnable {
         NOT_CHALLENGING_SELF,
         TARGET_NOT_AVAILABLE,
         CHALLENGE_ALREADY_SENT,
+        CHALLENGER_NOT_AVAILABLE,
 
         // Accept
         NOT_CHALLENGER_SET,
@@ -50,6 +108,32 @@ public class ClientHandler implements Runnable {
         INVALID_PLAY,
         NOT_IN_MATCH,
         NO_MESSAGE_GIVEN,
+
+        // Spectate
+        TARGET_NOT_IN_MATCH,
+        NOT_SPECTATING,
+
+        // Resume
+        NO_TOKEN_GIVEN,
+        INVALID_SESSION,
+
+        // Tournament
+        NO_TOURNAMENT_GIVEN,
+        INVALID_FORMAT,
+        TOURNAMENT_NOT_FOUND,
+        TOURNAMENT_ALREADY_EXISTS,
+        TOURNAMENT_ALREADY_STARTED,
+        ALREADY_JOINED,
+        NOT_TOURNAMENT_OWNER,
+        NOT_ENOUGH_PLAYERS,
+
+        // Leaderboard
+        INVALID_COUNT,
+
+        // Drain
+        SERVER_DRAINING,
+        NOT_ADMIN,
+
         INVALID_COMMAND;
 
         @Override
@@ -65,107 +149,483 @@ public class ClientHandler implements Runnable {
     }
 
     public ClientHandler(Socket clientSocket,
-                         Map<String, ClientHandler> connectedPlayers,
-                         AtomicInteger connectedClients) {
+                         ServerContext context) {
         this.clientSocket = clientSocket;
-        this.connectedPlayers = connectedPlayers;
-        this.connectedClients = connectedClients;
+        this.lobby = context.lobby();
+        this.cluster = context.cluster();
+        this.metrics = context.metrics();
+        this.heartbeat = context.heartbeat();
+        this.tournaments = context.tournaments();
+        this.sessions = context.sessions();
+        this.ratings = context.ratings();
+        this.replicator = context.replicator();
+        this.buffers = context.buffers();
+        this.drain = context.drain();
+        RateLimits limits = context.rateLimits();
+        this.commandLimiter = limits.newCommandLimiter();
+        this.getPlayersLimiter = limits.newGetPlayersLimiter();
+        this.challengeLimiter = limits.newChallengeLimiter();
+        this.matchMsgLimiter = limits.newMatchMessageLimiter();
+        this.strikeLimiter = limits.newStrikeLimiter();
+    }
+
+    /**
+     * Take over a session of another server, which stopped: it waits for its client to RESUME it.
+     *
+     * @return the session, null if the username is already used here
+     **/
+    public static ClientHandler restore(ServerContext context, String token, String username) {
+        ClientHandler session = new ClientHandler(null, context);
+        session.username = username;
+        if (!session.lobby.register(username, session))
+            return null;
+        synchronized (session) {
+            session.sessionToken = token;
+            session.restored = true;
+            session.sessions.restore(token, session);
+            session.grace = session.sessions.afterGrace(session::expire);
+        }
+        session.replicate();
+        return session;
     }
 
     @Override
     public void run() {
         try (Socket socket = clientSocket) {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            synchronized (this) {
+                connection = socket;
+                in = new LineReader(socket.getInputStream(), buffers);
+                out = new LineWriter(socket.getOutputStream(), buffers);
+            }
+            serve(socket, in);
+        } catch (IOException e) {
+            System.err.println("IO exception with client " + clientSocket.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handle the commands of a connection until it is closed.
+     **/
+    private void serve(Socket socket, LineReader reader) {
+        lastHeard = System.nanoTime();
+        heartbeat.add(this);
+        try {
+            readCommands(socket, reader);
+        } catch (IOException e) {
+            if (running && !isAuthenticated())
+                System.err.println("IO exception with client " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            connectionEnded(socket);
+        }
+    }
 
+    private void readCommands(Socket socket, LineReader reader) throws IOException {
+        String line;
+        while (running && (line = reader.readLine()) != null) {
+            long start = System.nanoTime();
+            lastHeard = start;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
 
-            String line;
-            while (running && (line = in.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
+            String[] parts = line.split("\\s+"); // split by whitespace generate with code auto-completion
+            String cmd = parts[0].toUpperCase();
 
-                String[] parts = line.split("\\s+"); // split by whitespace generate with code auto-completion
-                String cmd = parts[0].toUpperCase();
+            // Answer to the heartbeat, not a command
+            if (cmd.equals("PONG")) {
+                handlePong(parts, start);
+                continue;
+            }
 
-                switch (cmd) {
-                    case "CONNECT":
-                        handleConnect(parts);
-                        break;
-                    case "DISCONNECT":
-                        handleDisconnect();
-                        return;
-                    case "GETPLAYERS":
-                        handleGetPlayers();
-                        break;
-                    case "CHALLENGE":
-                        handleChallenge(parts);
-                        break;
-                    case "ACCEPT":
-                        handleAccept(parts);
-                        break;
-                    case "PLAY":
-                        handlePlay(parts);
-                        break;
-                    case "SURRENDER":
-                        handleSurrender();
-                        break;
-                    case "MATCH_MSG":
-                        handleMatchMsg(parts);
-                        break;
-                    case "MMR":
-                        handleMmr();
-                        break;
-                    default:
-                        sendRaw("INVALID_COMMAND");
+            if (!allow(cmd, start)) {
+                sendRaw("RATE_LIMITED");
+                metrics.recordRateLimited();
+                if (!strikeLimiter.tryAcquire(start)) {
+                    running = false;
+                    System.out.println("[SERVER] " + (username != null ? username : socket.getRemoteSocketAddress())
+                            + " disconnected for sending too many commands");
+                    return;
                 }
+                continue;
             }
-        } catch (IOException e) {
-            if (running)
-                System.err.println("IO exception with client " + username + ": " + e.getMessage());
-        } finally {
-            cleanup();
+
+            switch (cmd) {
+                case "CONNECT":
+                    handleConnect(parts);
+                    break;
+                case "RESUME":
+                    if (handleResume(parts, socket, reader))
+                        return;
+                    break;
+                case "DISCONNECT":
+                    handleDisconnect();
+                    return;
+                case "GETPLAYERS":
+                    handleGetPlayers();
+                    break;
+                case "CHALLENGE":
+                    handleChallenge(parts);
+                    break;
+                case "ACCEPT":
+                    handleAccept(parts);
+                    break;
+                case "PLAY":
+                    handlePlay(parts);
+                    break;
+                case "SURRENDER":
+                    handleSurrender();
+                    break;
+                case "MATCH_MSG":
+                    handleMatchMsg(parts);
+                    break;
+                case "MATCH_HISTORY":
+                    handleMatchHistory();
+                    break;
+                case "MMR":
+                    handleMmr();
+                    break;
+                case "LEADERBOARD":
+                    handleLeaderboard(parts);
+                    break;
+                case "HINT":
+                    handleHint();
+                    break;
+                case "SPECTATE":
+                    handleSpectate(parts);
+                    break;
+                case "TOURNAMENT":
+                    handleTournament(parts);
+                    break;
+                case "DRAIN":
+                    handleDrain(parts);
+                    break;
+                case "METRICS":
+                    sendRaw("METRICS " + metrics.describe());
+                    break;
+                default:
+                    sendRaw("INVALID_COMMAND");
+            }
+            metrics.recordCommand(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Take a token from the bucket of the connection, then from the one of the command if it has one.
+     * A command refused by its own bucket gives the token of the connection back, the other commands still pass.
+     * DISCONNECT is never throttled.
+     **/
+    private boolean allow(String cmd, long now) {
+        if (cmd.equals("DISCONNECT")) return true;
+        if (!commandLimiter.tryAcquire(now)) return false;
+        boolean allowed = switch (cmd) {
+            case "GETPLAYERS" -> getPlayersLimiter.tryAcquire(now);
+            case "CHALLENGE" -> challengeLimiter.tryAcquire(now);
+            case "MATCH_MSG" -> matchMsgLimiter.tryAcquire(now);
+            default -> true;
+        };
+        if (!allowed)
+            commandLimiter.release();
+        return allowed;
+    }
+
+    /* Heartbeat */
+    @Override
+    public long lastHeard() {
+        return lastHeard;
+    }
+
+    @Override
+    public void ping(long token) {
+        // Not kept, a PING missed is not sent again after a RESUME
+        synchronized (this) {
+            if (out == null) return;
+            try {
+                out.writeLine("PING " + token);
+            } catch (IOException ignored) {
+                // The connection is broken, the reader will see it
+            }
+        }
+    }
+
+    /**
+     * Nothing was heard for too long: closing the socket ends the reading loop,
+     * as if the connection was lost.
+     **/
+    @Override
+    public void reap() {
+        // Not under the lock: a write blocked on a full buffer holds it, closing the socket unblocks it
+        Socket socket = connection;
+        System.out.println("[SERVER] " + (username != null ? username : socket.getRemoteSocketAddress())
+                + " reaped, no answer to the heartbeat");
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void handlePong(String[] parts, long now) {
+        if (parts.length < 2) return;
+        try {
+            long rtt = now - Long.parseLong(parts[1]);
+            if (rtt < 0) return;
+            rttNanos = rttNanos == 0 ? rtt : (7 * rttNanos + rtt) / 8;
+            metrics.recordRtt(rtt);
+        } catch (NumberFormatException ignored) {
         }
     }
 
+    @Override
+    public long getRttNanos() {
+        return rttNanos;
+    }
+
     /* Communication methods */
+    @Override
     public synchronized void send(String message) throws IOException {
         sendRaw(message);
     }
 
+    /**
+     * Send a message, it is kept for a RESUME even when the connection is lost.
+     **/
     private synchronized void sendRaw(String message) throws IOException {
+        int lines = 1;
+        for (int i = 0; i < message.length(); i++)
+            if (message.charAt(i) == '\n')
+                lines++;
+        record(message, lines);
+        if (out == null) return;
+        out.writeLine(message);
+    }
+
+    /**
+     * Write an event of a watched match, encoded once for all its spectators.
+     **/
+    @Override
+    public synchronized void write(byte[] event) throws IOException {
+        // Ends with a newline, a burst of chat holds several lines
+        int lines = 0;
+        for (byte b : event)
+            if (b == '\n')
+                lines++;
+        record(event, lines);
         if (out == null) return;
-        out.write(message);
-        out.write("\n");
-        out.flush();
+        out.write(event);
+    }
+
+    /* Session resumption */
+
+    /**
+     * Keep a sent message, with the number of lines sent so far.
+     **/
+    private void record(Object message, int lines) {
+        if (messagesSent == replay.length && replay.length < REPLAY_SIZE) {
+            // Not wrapped yet, the messages keep their slots
+            replay = Arrays.copyOf(replay, replay.length * 2);
+            replayEnd = Arrays.copyOf(replayEnd, replayEnd.length * 2);
+        }
+        int slot = (int) (messagesSent++ % replay.length);
+        linesSent += lines;
+        replay[slot] = message;
+        replayEnd[slot] = linesSent;
+    }
+
+    /**
+     * Send again the kept messages the client did not receive.
+     *
+     * @param received number of lines the client received during the session
+     **/
+    private void replayFrom(long received) throws IOException {
+        long message = Math.max(0, messagesSent - replay.length);
+        while (message < messagesSent && replayEnd[(int) (message % replay.length)] <= received)
+            message++;
+        for (; message < messagesSent; message++) {
+            Object kept = replay[(int) (message % replay.length)];
+            if (kept instanceof byte[] event) {
+                out.write(event);
+            } else {
+                out.writeLine((String) kept);
+            }
+        }
+    }
+
+    /**
+     * The reading loop of a connection is over.
+     * Unless the client left with DISCONNECT, the session waits during the grace window for a RESUME.
+     **/
+    private void connectionEnded(Socket socket) {
+        synchronized (this) {
+            if (connection != socket)
+                return; // taken over by another connection
+            out = null;
+            if (running && !ended && isAuthenticated() && sessions.getGraceMs() > 0) {
+                linesAtDetach = linesSent;
+                grace = sessions.afterGrace(this::expire);
+            } else {
+                ended = true;
+            }
+        }
+        heartbeat.remove(this);
+        if (ended) {
+            cleanup();
+            return;
+        }
+        System.out.println("[SERVER] " + username + " lost its connection, session kept for "
+                + sessions.getGraceMs() / 1000 + " s");
+        Player other = opponent;
+        if (other != null && isInMatch())
+            message(other, "OPPONENT_CONNECTION_LOST");
+    }
+
+    /**
+     * Nobody resumed the session in time: it ends as with DISCONNECT.
+     **/
+    private void expire() {
+        synchronized (this) {
+            if (ended || out != null) return;
+            ended = true;
+        }
+        System.out.println("[SERVER] " + username + " did not come back, session closed");
+        cleanup();
+    }
+
+    /**
+     * Continue the session on the connection of another handler, which received RESUME.
+     * The lines the client missed are sent again, after RESUMED.
+     *
+     * @param received number of lines the client received during the session, -1 if unknown
+     * @return false if the session is over
+     **/
+    private boolean adopt(Socket socket, LineReader reader, LineWriter writer, long received) throws IOException {
+        Socket previous;
+        boolean detached;
+        synchronized (this) {
+            if (ended) return false;
+            detached = out == null;
+            if (grace != null) {
+                grace.cancel(false);
+                grace = null;
+            }
+            previous = connection;
+            connection = socket;
+            in = reader;
+            out = writer;
+            // Not kept, it is not part of the session
+            out.writeLine("RESUMED");
+            if (restored) {
+                // The lines sent here follow the ones the client received from the other server
+                restored = false;
+                long before = Math.max(0, received);
+                for (int i = 0; i < replayEnd.length; i++)
+                    replayEnd[i] += before;
+                linesSent += before;
+                replayFrom(before);
+            } else {
+                replayFrom(received >= 0 ? received : detached ? linesAtDetach : linesSent);
+            }
+        }
+        // The previous connection may still look open, its reader stops once it is closed
+        if (previous != null && previous != socket && !previous.isClosed()) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {
+            }
+        }
+        System.out.println("[SERVER] " + username + " resumed its session");
+        Player other = opponent;
+        if (detached && other != null && isInMatch())
+            message(other, "OPPONENT_RESUMED");
+        return true;
+    }
+
+    private boolean handleResume(String[] parts, Socket socket, LineReader reader) throws IOException {
+        if (isAuthenticated()) {
+            sendRaw("ERROR " + ErrorCodes.ALREADY_AUTHENTICATED);
+            return false;
+        }
+        if (parts.length < 2) {
+            sendRaw("ERROR " + ErrorCodes.NO_TOKEN_GIVEN);
+            return false;
+        }
+        long received = -1;
+        if (parts.length > 2) {
+            try {
+                received = Long.parseLong(parts[2]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (!(sessions.find(parts[1]) instanceof ClientHandler session)) {
+            sendRaw("ERROR " + ErrorCodes.INVALID_SESSION);
+            return false;
+        }
+
+        // From now on, the session writes on this connection
+        LineWriter writer;
+        synchronized (this) {
+            writer = out;
+            out = null;
+        }
+        heartbeat.remove(this);
+        if (!session.adopt(socket, reader, writer, received)) {
+            synchronized (this) {
+                out = writer;
+            }
+            heartbeat.add(this);
+            sendRaw("ERROR " + ErrorCodes.INVALID_SESSION);
+            return false;
+        }
+        running = false;
+        session.serve(socket, reader);
+        return true;
+    }
+
+    /**
+     * Copy the session to the standby server.
+     **/
+    private void replicate() {
+        String token = sessionToken;
+        if (replicator != null && token != null)
+            replicator.sessionOpened(token, username);
+    }
+
+    private static void message(Player player, String message) {
+        try {
+            player.send(message);
+        } catch (IOException e) {
+            System.err.println("[SERVER] Error: " + e.getMessage());
+        }
     }
 
     /* Getters */
+    @Override
     public String getUsername() {
         if (!isAuthenticated()) return null;
         return username;
     }
 
+    @Override
     public double getMmr() {
-        double mmr = 0;
-        int games = this.gamesPlayed.get();
-        int score = this.score.get();
-
-        if (games > 0)
-            mmr = (double) score / games;
-
-        return mmr;
+        return Math.rint(ratings.snapshot().elo(username));
     }
 
     /* Setters */
-    private void setOpponent(ClientHandler player) {
+    @Override
+    public void setOpponent(Player player) {
         if (!isAuthenticated()) return;
         this.opponent = player;
     }
 
-    public void setMatchSession(GameManager session) {
+    @Override
+    public MatchSession getMatchSession() {
+        return matchSession;
+    }
+
+    @Override
+    public void setMatchSession(MatchSession session) {
         if (!isAuthenticated()) return;
+        if (session != null)
+            this.matchSeat = session.seatOf(this);
         this.matchSession = session;
     }
 
@@ -174,10 +634,12 @@ public class ClientHandler implements Runnable {
         return username != null;
     }
 
+    @Override
     public boolean isInMatch() {
         return matchSession != null;
     }
 
+    @Override
     public boolean isChallenged() {
         return opponent != null;
     }
@@ -200,16 +662,33 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        synchronized (connectedPlayers) {
-            if (connectedPlayers.containsKey(requested)) {
-                sendRaw("ERROR " + ErrorCodes.NAME_IN_USE); // username already in use
-                return;
-            }
-            username = requested;
-            connectedPlayers.put(username, this);
-            sendRaw("OK");
-            // Welcome message
-            sendRaw("WELCOME to the Game Card jitSUS");
+        if (drain.isDraining()) {
+            // No new player, the client goes to another server
+            sendRaw("SERVER_DRAINING");
+            running = false;
+            return;
+        }
+
+        if (cluster != null && cluster.find(requested) != null) {
+            sendRaw("ERROR " + ErrorCodes.NAME_IN_USE); // username used on another node
+            return;
+        }
+
+        // The shard owning the name decides, so two clients cannot get the same one
+        username = requested;
+        if (!lobby.register(requested, this)) {
+            username = null;
+            sendRaw("ERROR " + ErrorCodes.NAME_IN_USE); // username already in use
+            return;
+        }
+        sendRaw("OK");
+        // Welcome message
+        sendRaw("WELCOME to the Game Card jitSUS");
+        // Token to take the session back after losing the connection
+        if (sessions.getGraceMs() > 0) {
+            sessionToken = sessions.open(this);
+            sendRaw("SESSION " + sessionToken);
+            replicate();
         }
     }
 
@@ -221,7 +700,7 @@ public class ClientHandler implements Runnable {
 
         if (matchSession != null) {
             try {
-                matchSession.receive(username, "DISCONNECT");
+                matchSession.receive(MatchEvent.of(matchSeat, MatchEvent.DISCONNECT));
             } catch (Exception ignored) {
             }
             matchSession = null;
@@ -238,13 +717,17 @@ public class ClientHandler implements Runnable {
         }
         StringBuilder sb = new StringBuilder();
 
-        for (String user : connectedPlayers.keySet()) {
-            ClientHandler handler = connectedPlayers.get(user);
-            if (!user.equals(username)  // exclude self
+        // Only the index of available players is visited, not the whole lobby
+        lobby.forEachAvailable(handler -> {
+            if (handler != this  // exclude self
                     && !handler.isInMatch() // exclude in-match
                     && !handler.isChallenged()) { // exclude challenged
-                sb.append(user).append("\t\t").append(handler.getMmr()).append("\n");
+                sb.append(handler.getUsername()).append("\t\t").append(handler.getMmr()).append("\n");
             }
+        });
+        if (cluster != null) {
+            cluster.forEachRemoteAvailable(entry ->
+                    sb.append(entry.name()).append("\t\t").append(entry.mmr()).append("\t\t@").append(entry.node()).append("\n"));
         }
 
         if (sb.isEmpty()) {
@@ -259,6 +742,10 @@ public class ClientHandler implements Runnable {
             sendRaw("ERROR " + ErrorCodes.NOT_AUTHENTICATED);
             return;
         }
+        if (drain.isDraining()) {
+            sendRaw("ERROR " + ErrorCodes.SERVER_DRAINING);
+            return;
+        }
         if (parts.length < 2) {
             sendRaw("ERROR " + ErrorCodes.TARGET_NOT_FOUND);
             return;
@@ -268,7 +755,11 @@ public class ClientHandler implements Runnable {
             sendRaw("ERROR " + ErrorCodes.NOT_CHALLENGING_SELF);
             return;
         }
-        ClientHandler targetHandler = connectedPlayers.get(target);
+        Player targetHandler = lobby.find(target);
+        if (targetHandler == null && cluster != null) {
+            handleRemoteChallenge(target);
+            return;
+        }
         if (targetHandler == null) {
             sendRaw("ERROR " + ErrorCodes.USER_NOT_FOUND);
             return;
@@ -282,14 +773,41 @@ public class ClientHandler implements Runnable {
             sendRaw("ERROR " + ErrorCodes.CHALLENGE_ALREADY_SENT);
             return;
         }
+        // Reserved before the target: this player may have been challenged meanwhile
+        if (!lobby.claim(this)) {
+            sendRaw("ERROR " + ErrorCodes.CHALLENGER_NOT_AVAILABLE);
+            return;
+        }
         sendRaw("CHALLENGE_SENT");
 
-        // Race condition possible here
-        synchronized ( targetHandler) {
-            setOpponent(targetHandler);
-            targetHandler.setOpponent(this);
-            targetHandler.sendRaw("CHALLENGE_REQUEST " + username);
+        // The shard of the target reserves it, then delivers the request
+        lobby.challenge(this, targetHandler);
+    }
+
+    private void handleRemoteChallenge(String target) throws IOException {
+        ClusterNode.Entry entry = cluster.find(target);
+        if (entry == null) {
+            sendRaw("ERROR " + ErrorCodes.USER_NOT_FOUND);
+            return;
         }
+        if (!entry.available()) {
+            sendRaw("ERROR " + ErrorCodes.TARGET_NOT_AVAILABLE);
+            return;
+        }
+        if (opponent != null && target.equals(opponent.getUsername())) {
+            sendRaw("ERROR " + ErrorCodes.CHALLENGE_ALREADY_SENT);
+            return;
+        }
+        sendRaw("CHALLENGE_SENT");
+
+        // The node of the target runs the match, if it is accepted
+        cluster.challenge(this, entry);
+    }
+
+    @Override
+    public void challengedBy(Player challenger) throws IOException {
+        setOpponent(challenger);
+        sendRaw("CHALLENGE_REQUEST " + challenger.getUsername());
     }
 
     private void handleAccept(String[] parts) throws IOException {
@@ -307,32 +825,24 @@ public class ClientHandler implements Runnable {
         }
 
         String answer = parts[1].trim().toUpperCase();
-        String challengerName = opponent.getUsername();
+        if ("Y".equals(answer) && drain.isDraining()) {
+            // No new match: declined, both players are then sent to another server
+            sendRaw("ERROR " + ErrorCodes.SERVER_DRAINING);
+            answer = "N";
+        }
         if ("Y".equals(answer)) {
             // Accepted
-            opponent.sendRaw("CHALLENGE_ACCEPTED");
-
-            // Start challenge stub
-            sendRaw("CHALLENGE_START " + challengerName + " " + username);
+            opponent.send("CHALLENGE_ACCEPTED");
 
-            // Notify opponent
-            opponent.sendRaw("CHALLENGE_START " + challengerName + " " + username);
-
-            // Create game session
-            GameManager session = new GameManager(opponent, this);
-
-            // Set match sessions
-            this.setMatchSession(session);
-            opponent.setMatchSession(session);
-
-            // Start game session in new thread
-            Thread t = new Thread(session, "match-" + challengerName + "-vs-" + username);
-            t.start();
+            // Announce, create and start the game session in a new thread
+            GameManager.start(opponent, this, ratings);
         } else if ("N".equals(answer)) {
             // Declined
-            opponent.sendRaw("CHALLENGE_DECLINED");
+            opponent.send("CHALLENGE_DECLINED");
             opponent.setOpponent(null);
+            lobby.release(opponent);
             this.opponent = null;
+            lobby.release(this);
         } else {
             // Invalid response
             sendRaw("ERROR " + ErrorCodes.INVALID_RESPONSE);
@@ -355,7 +865,7 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        String play = parts[1].trim().toUpperCase();
+        String play = parts[1].trim();
 
         switch (play) {
             case "1":
@@ -363,8 +873,11 @@ public class ClientHandler implements Runnable {
             case "3":
             case "4":
             case "5":
-                matchSession.receive(username, play);
-                sendRaw("MOVE_ACCEPTED");
+                // Dropped only when the player floods its match faster than it plays
+                if (matchSession.receive(MatchEvent.play(matchSeat, play.charAt(0) - '1')))
+                    sendRaw("MOVE_ACCEPTED");
+                else
+                    sendRaw("RATE_LIMITED");
                 return;
             default:
                 sendRaw("ERROR " + ErrorCodes.INVALID_PLAY);
@@ -380,7 +893,7 @@ public class ClientHandler implements Runnable {
         if (matchSession == null) {
             sendRaw("ERROR " + ErrorCodes.NOT_IN_MATCH);
         } else {
-            matchSession.receive(username, "SURRENDER");
+            matchSession.receive(MatchEvent.of(matchSeat, MatchEvent.SURRENDER));
             // The session will take care of notifying and closing itself
         }
     }
@@ -391,7 +904,8 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        if (matchSession == null) {
+        MatchSession session = matchSession;
+        if (session == null) {
             sendRaw("ERROR " + ErrorCodes.NOT_IN_MATCH);
             return;
         }
@@ -401,17 +915,161 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        //Reconstruct the message after the MATCH_MSG token
-        StringBuilder sb = new StringBuilder();
-        sb.append("MSG_FROM ").append(username).append(" : ");
-        for (int i = 1; i < parts.length; i++) {
-            sb.append(parts[i]);
-            if (i < parts.length - 1) {
-                sb.append(" ");
+        // Relayed by the chat of the match, apart from the rounds
+        session.chat(matchSeat, String.join(" ", Arrays.asList(parts).subList(1, parts.length)));
+    }
+
+    private void handleMatchHistory() throws IOException {
+        if (!isAuthenticated()) {
+            sendRaw("ERROR " + ErrorCodes.NOT_AUTHENTICATED);
+            return;
+        }
+        // The match played, else the match watched: only the ones run by this server keep a history
+        MatchSession session = matchSession;
+        GameManager match = session instanceof GameManager played ? played : session == null ? watched : null;
+        if (match == null) {
+            sendRaw("ERROR " + ErrorCodes.NOT_IN_MATCH);
+            return;
+        }
+        sendRaw(match.chatHistory());
+    }
+
+    private void handleHint() throws IOException {
+        if (!isAuthenticated()) {
+            sendRaw("ERROR " + ErrorCodes.NOT_AUTHENTICATED);
+            return;
+        }
+        if (matchSession == null) {
+            sendRaw("ERROR " + ErrorCodes.NOT_IN_MATCH);
+        } else {
+            // Answered by the session, which owns the hands
+            if (!matchSession.receive(MatchEvent.of(matchSeat, MatchEvent.HINT)))
+                sendRaw("RATE_LIMITED");
+        }
+    }
+
+    private void handleSpectate(String[] parts) throws IOException {
+        if (!isAuthenticated()) {
+            sendRaw("ERROR " + ErrorCodes.NOT_AUTHENTICATED);
+            return;
+        }
+        // Without a player, stop watching
+        if (parts.length < 2) {
+            if (spectating == null) {
+                sendRaw("ERROR " + ErrorCodes.NOT_SPECTATING);
+            } else {
+                spectating.leave();
+                spectating = null;
+                watched = null;
+                sendRaw("OK");
             }
+            return;
+        }
+
+        Player target = lobby.find(parts[1]);
+        if (target == null) {
+            sendRaw("ERROR " + ErrorCodes.USER_NOT_FOUND);
+            return;
+        }
+        // Only the matches run by this server can be watched
+        if (!(target.getMatchSession() instanceof GameManager match)) {
+            sendRaw("ERROR " + ErrorCodes.TARGET_NOT_IN_MATCH);
+            return;
         }
 
-        opponent.send(sb.toString());
+        if (spectating != null)
+            spectating.leave();
+        Spectator spectator = new Spectator(this);
+        String summary = match.watch(spectator);
+        if (summary == null) {
+            spectating = null;
+            watched = null;
+            sendRaw("ERROR " + ErrorCodes.TARGET_NOT_IN_MATCH);
+            return;
+        }
+        spectating = spectator;
+        watched = match;
+        sendRaw(summary);
+    }
+
+    /**
+     * Drain the server, for an admin giving the token of the server. A second DRAIN stops it without waiting.
+     **/
+    private void handleDrain(String[] parts) throws IOException {
+        if (parts.length < 2 || !drain.allows(parts[1])) {
+            sendRaw("ERROR " + ErrorCodes.NOT_ADMIN);
+            return;
+        }
+        System.out.println("[SERVER] Drain asked by " + (username != null ? username : connection.getRemoteSocketAddress()));
+        drain.begin();
+        sendRaw("DRAINING " + GameManager.running());
+    }
+
+    private void handleTournament(String[] parts) throws IOException {
+        if (!isAuthenticated()) {
+            sendRaw("ERROR " + ErrorCodes.NOT_AUTHENTICATED);
+            return;
+        }
+        if (parts.length < 3) {
+            sendRaw("ERROR " + ErrorCodes.NO_TOURNAMENT_GIVEN);
+            return;
+        }
+        String action = parts[1].toUpperCase();
+        String name = parts[2];
+        if (drain.isDraining() && !action.equals("STATUS")) {
+            sendRaw("ERROR " + ErrorCodes.SERVER_DRAINING);
+            return;
+        }
+
+        if (action.equals("CREATE")) {
+            Tournament.Format format;
+            try {
+                format = parts.length < 4 ? Tournament.Format.ELIMINATION : Tournament.Format.valueOf(parts[3].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                sendRaw("ERROR " + ErrorCodes.INVALID_FORMAT);
+                return;
+            }
+            if (tournaments.create(name, format, this) == null) {
+                sendRaw("ERROR " + ErrorCodes.TOURNAMENT_ALREADY_EXISTS);
+            } else {
+                sendRaw("TOURNAMENT_CREATED " + name + " " + format);
+            }
+            return;
+        }
+
+        Tournament tournament = tournaments.find(name);
+        if (tournament == null) {
+            sendRaw("ERROR " + ErrorCodes.TOURNAMENT_NOT_FOUND);
+            return;
+        }
+        switch (action) {
+            case "JOIN": {
+                int entrants = tournament.join(this);
+                if (entrants < 0) {
+                    sendRaw("ERROR " + (tournament.getState() == Tournament.State.OPEN
+                            ? ErrorCodes.ALREADY_JOINED : ErrorCodes.TOURNAMENT_ALREADY_STARTED));
+                } else {
+                    sendRaw("TOURNAMENT_JOINED " + name + " " + entrants);
+                }
+                break;
+            }
+            case "START":
+                if (tournament.getOwner() != this) {
+                    sendRaw("ERROR " + ErrorCodes.NOT_TOURNAMENT_OWNER);
+                } else if (tournament.getState() != Tournament.State.OPEN) {
+                    sendRaw("ERROR " + ErrorCodes.TOURNAMENT_ALREADY_STARTED);
+                } else if (!tournament.start()) {
+                    sendRaw("ERROR " + ErrorCodes.NOT_ENOUGH_PLAYERS);
+                } else {
+                    sendRaw("OK");
+                }
+                break;
+            case "STATUS":
+                sendRaw(tournament.describe());
+                break;
+            default:
+                sendRaw("INVALID_COMMAND");
+        }
     }
 
     private void handleMmr() throws IOException {
@@ -421,10 +1079,38 @@ public class ClientHandler implements Runnable {
         }
         sendRaw("MMR " + getMmr());
     }
+
+    private void handleLeaderboard(String[] parts) throws IOException {
+        if (!isAuthenticated()) {
+            sendRaw("ERROR " + ErrorCodes.NOT_AUTHENTICATED);
+            return;
+        }
+        int count = LEADERBOARD_SIZE;
+        if (parts.length >= 2) {
+            try {
+                count = Math.min(Integer.parseInt(parts[1]), LEADERBOARD_MAX);
+            } catch (NumberFormatException e) {
+                sendRaw("ERROR " + ErrorCodes.INVALID_COUNT);
+                return;
+            }
+        }
+
+        // One snapshot for the whole answer, the ranks and the ratings agree
+        Ratings.Snapshot snapshot = ratings.snapshot();
+        StringBuilder sb = new StringBuilder("LEADERBOARD ").append(snapshot.size()).append(' ')
+                .append(snapshot.rank(username));
+        int rank = 0;
+        for (Ratings.Rating rating : snapshot.top(count)) {
+            sb.append('\n').append(++rank).append('\t').append(rating.username())
+                    .append('\t').append(Math.round(rating.elo())).append('\t').append(rating.games());
+        }
+        sendRaw(sb.toString());
+    }
     
     /* Method called by GameManager */
 
-    public String handleMatchEnd(int score) {
+    @Override
+    public String handleMatchEnd(int score, int opponentScore) {
         if (!isAuthenticated()) {
             return "ERROR " + ErrorCodes.NOT_AUTHENTICATED;
         }
@@ -434,31 +1120,30 @@ public class ClientHandler implements Runnable {
             return "ERROR " + ErrorCodes.NOT_IN_MATCH;
         }
 
-        // Update MMR stats
-        this.score.addAndGet(score);
-        this.gamesPlayed.incrementAndGet();
-
+        // The rating is updated by the Ratings of the server, from the result of the whole match
         this.setMatchSession(null);
         this.setOpponent(null);
+        lobby.release(this);
         return "OK";
     }
 
     /* Cleanup on disconnect */
     private void cleanup() {
+        heartbeat.remove(this);
+        sessions.close(sessionToken, this);
+        if (replicator != null && sessionToken != null)
+            replicator.sessionClosed(sessionToken);
+        if (spectating != null)
+            spectating.leave();
         if (isAuthenticated() && !isInMatch()) {
-            connectedPlayers.remove(username);
+            lobby.unregister(username, this);
 
         } else if (isInMatch()) {
             try {
-                matchSession.receive(username, "DISCONNECT");
+                matchSession.receive(MatchEvent.of(matchSeat, MatchEvent.DISCONNECT));
             } catch (Exception ignored) {
             }
-            connectedPlayers.remove(username);
-        }
-        connectedClients.decrementAndGet();
-        try {
-            if (out != null) out.flush();
-        } catch (IOException ignored) {
+            lobby.unregister(username, this);
         }
     }
 
@@ -472,7 +1157,7 @@ public class ClientHandler implements Runnable {
         // if the client is in match, close the match session
         try {
             if (matchSession != null) {
-                matchSession.receive(username, "DISCONNECT");
+                matchSession.receive(MatchEvent.of(matchSeat, MatchEvent.DISCONNECT));
                 matchSession = null;
             }
         } catch (Exception ignored) {
@@ -483,8 +1168,14 @@ public class ClientHandler implements Runnable {
         }
 
         // close the socket to unblock the thread
+        Socket socket;
+        synchronized (this) {
+            socket = connection;
+            if (grace != null)
+                grace.cancel(false);
+        }
         try {
-            clientSocket.close();
+            if (socket != null) socket.close();
         } catch (IOException ignored) {
         }
 
@@ -497,4 +1188,39 @@ public class ClientHandler implements Runnable {
         } catch (IOException ignored) {
         }
     }
+
+    /**
+     * The server is draining: a player idle in the lobby is told to connect to another server, and its session ends.
+     * A player in a match, challenged or held by a tournament is not available, it is drained once back in the lobby.
+     **/
+    public void drain() {
+        Socket socket;
+        boolean detached;
+        synchronized (this) {
+            if (!running || ended || !isAuthenticated() || isInMatch() || isChallenged()) return;
+            running = false;
+            socket = connection;
+            // Lost its connection, nobody to tell
+            detached = out == null;
+            if (detached) {
+                ended = true;
+                if (grace != null)
+                    grace.cancel(false);
+            }
+        }
+        System.out.println("[SERVER] " + username + " sent to another server");
+        if (detached) {
+            cleanup();
+            return;
+        }
+        try {
+            sendRaw("SERVER_DRAINING");
+        } catch (IOException ignored) {
+        }
+        // The reader stops and the session ends, as after DISCONNECT
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import ch.heigvd.dai.jitsus.server.BufferPool;
+
+/**
+ * Reads the lines of a connection in UTF-8, with a buffer borrowed from the pool only while a line arrives.
+ * Waiting for the next line holds no buffer: its first byte is read alone.
+ * A line longer than the cap of a connection ends the connection.
+ *
+ * Used by the reading thread of the connection only, except {@link #close}.
+ **/
+final class LineReader implements Closeable {
+    private final InputStream in;
+    private final BufferPool pool;
+    private final byte[] first = new byte[1];
+    private byte[] buffer = null;
+    // Bytes read and not returned yet
+    private int start = 0;
+    private int end = 0;
+
+    LineReader(InputStream in, BufferPool pool) {
+        this.in = in;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the next line without its end, null at the end of the stream
+     **/
+    String readLine() throws IOException {
+        try {
+            while (true) {
+                if (buffer == null) {
+                    if (in.read(first, 0, 1) < 0)
+                        return null;
+                    buffer = pool.borrow(BufferPool.MIN_SIZE);
+                    buffer[0] = first[0];
+                    start = 0;
+                    end = 1;
+                }
+                for (int i = start; i < end; i++) {
+                    if (buffer[i] == '\n')
+                        return take(i, i + 1);
+                }
+                if (end == buffer.length)
+                    makeRoom();
+                int n = in.read(buffer, end, buffer.length - end);
+                if (n < 0)
+                    return start < end ? take(end, end) : giveBack(null);
+                end += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            giveBack(null);
+            throw e;
+        }
+    }
+
+    /**
+     * @param lineEnd end of the line in the buffer
+     * @param next start of the next line
+     **/
+    private String take(int lineEnd, int next) {
+        int length = lineEnd - start;
+        if (length > 0 && buffer[lineEnd - 1] == '\r')
+            length--;
+        String line = new String(buffer, start, length, StandardCharsets.UTF_8);
+        start = next;
+        if (start == end)
+            giveBack(null);
+        return line;
+    }
+
+    /**
+     * Make room at the end of a full buffer: move the line to its start, or take a larger buffer.
+     **/
+    private void makeRoom() throws IOException {
+        int length = end - start;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length);
+        } else {
+            if (buffer.length >= pool.getConnectionCap())
+                throw new IOException("Line longer than " + pool.getConnectionCap() + " bytes");
+            byte[] larger = pool.borrow(buffer.length + 1);
+            System.arraycopy(buffer, 0, larger, 0, length);
+            pool.release(buffer);
+            buffer = larger;
+        }
+        start = 0;
+        end = length;
+    }
+
+    private String giveBack(String line) {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        return line;
+    }
+
+    /**
+     * Close the stream, the reading thread gives the buffer back when its read fails.
+     **/
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import ch.heigvd.dai.jitsus.server.BufferPool;
+
+/**
+ * Writes the lines of a connection in UTF-8, encoded in a buffer borrowed from the pool for the time of a write.
+ * A line longer than the cap of a connection is written in several parts.
+ *
+ * Not thread-safe, the handler of the connection writes under its lock.
+ **/
+final class LineWriter implements Closeable {
+    private final OutputStream out;
+    private final BufferPool pool;
+
+    LineWriter(OutputStream out, BufferPool pool) {
+        this.out = out;
+        this.pool = pool;
+    }
+
+    /**
+     * Write a message and the end of its line.
+     **/
+    void writeLine(String message) throws IOException {
+        byte[] buffer = pool.borrow(Math.min(encodedLength(message) + 1, pool.getConnectionCap()));
+        try {
+            int position = 0;
+            for (int i = 0; i < message.length(); i++) {
+                // Room for the longest character
+                if (buffer.length - position < 4) {
+                    out.write(buffer, 0, position);
+                    position = 0;
+                }
+                char c = message.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | c >> 6);
+                    buffer[position++] = (byte) (0x80 | c & 0x3f);
+                } else if (isPair(message, i)) {
+                    int code = Character.toCodePoint(c, message.charAt(++i));
+                    buffer[position++] = (byte) (0xf0 | code >> 18);
+                    buffer[position++] = (byte) (0x80 | code >> 12 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | code >> 6 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | code & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    // Alone, as String.getBytes does
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xe0 | c >> 12);
+                    buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+            // The last character may have filled a capped buffer
+            if (position == buffer.length) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = '\n';
+            out.write(buffer, 0, position);
+            out.flush();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Write lines already encoded.
+     **/
+    void write(byte[] lines) throws IOException {
+        out.write(lines);
+        out.flush();
+    }
+
+    private static boolean isPair(String text, int i) {
+        return Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1));
+    }
+
+    private static int encodedLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isPair(text, i)) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.rating;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import ch.heigvd.dai.jitsus.game.MatchListener;
+import ch.heigvd.dai.jitsus.game.Player;
+
+/**
+ * Elo ratings of the players, kept by username so that they outlive the connections.
+ *
+ * The results of the matches are queued by the match threads and applied by a single writer thread, in batches.
+ * After each batch the writer publishes a new immutable {@link Snapshot}, which the other threads read without lock:
+ * a rating read while a batch is applied is the one before the batch.
+ **/
+public class Ratings implements MatchListener {
+    public static final double INITIAL = 1500;
+    // Most points a player can win or lose in a match, higher while it has played few matches
+    private static final double K = 20;
+    private static final double K_PROVISIONAL = 40;
+    private static final int PROVISIONAL_GAMES = 20;
+    private static final int MAX_BATCH = 1024;
+
+    public record Rating(String username, double elo, int games) {
+    }
+
+    /**
+     * Ratings at the end of a batch, never changed once published.
+     **/
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(Map.of());
+
+        private final Map<String, Rating> ratings;
+        // Best first
+        private final List<Rating> ranking;
+        private final Map<String, Integer> ranks;
+
+        private Snapshot(Map<String, Rating> ratings) {
+            this.ratings = Map.copyOf(ratings);
+            List<Rating> sorted = new ArrayList<>(ratings.values());
+            sorted.sort(Comparator.comparingDouble(Rating::elo).reversed().thenComparing(Rating::username));
+            this.ranking = List.copyOf(sorted);
+            Map<String, Integer> byName = new HashMap<>();
+            for (int i = 0; i < sorted.size(); i++)
+                byName.put(sorted.get(i).username(), i + 1);
+            this.ranks = Map.copyOf(byName);
+        }
+
+        /**
+         * @return the rating of the player, {@link #INITIAL} if it never finished a match
+         **/
+        public double elo(String username) {
+            Rating rating = username == null ? null : ratings.get(username);
+            return rating == null ? INITIAL : rating.elo();
+        }
+
+        /**
+         * @return the place of the player in the ranking starting at 1, 0 if it never finished a match
+         **/
+        public int rank(String username) {
+            return username == null ? 0 : ranks.getOrDefault(username, 0);
+        }
+
+        /**
+         * @return the best players, best first
+         **/
+        public List<Rating> top(int count) {
+            return ranking.subList(0, Math.min(Math.max(count, 0), ranking.size()));
+        }
+
+        public int size() {
+            return ranking.size();
+        }
+    }
+
+    /**
+     * A change of the ratings, applied by the writer thread.
+     **/
+    @FunctionalInterface
+    private interface Change {
+        void apply(Map<String, Rating> ratings, Consumer<Rating> changed);
+    }
+
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile Consumer<Rating> observer = rating -> {};
+
+    public Ratings() {
+        writer = new Thread(this::write, "ratings");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Give every new rating to an observer, called by the writer thread after the batch is published.
+     **/
+    public void observe(Consumer<Rating> observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * @return the number of changes waiting for the writer
+     **/
+    public int pending() {
+        return queue.size();
+    }
+
+    /* Changes */
+
+    /**
+     * Rate a match played on this server. A player of another server keeps its rating,
+     * its server rates it from {@link #matchEndedAgainst}.
+     **/
+    @Override
+    public void matchEnded(Player player1, Player player2, int score1, int score2) {
+        String u1 = player1.getUsername();
+        String u2 = player2.getUsername();
+        if (u1 == null || u2 == null) return;
+        double fixed1 = player1.isRemote() ? player1.getMmr() : Double.NaN;
+        double fixed2 = player2.isRemote() ? player2.getMmr() : Double.NaN;
+        double outcome = outcome(score1, score2);
+        queue.add((ratings, changed) -> rate(ratings, changed, u1, fixed1, u2, fixed2, outcome));
+    }
+
+    /**
+     * Rate a player of this server for a match played on another server.
+     *
+     * @param opponentElo rating of the opponent on its own server
+     **/
+    public void matchEndedAgainst(String username, double opponentElo, int score, int opponentScore) {
+        double outcome = outcome(score, opponentScore);
+        queue.add((ratings, changed) -> rate(ratings, changed, username, Double.NaN, null, opponentElo, outcome));
+    }
+
+    /**
+     * Set a rating copied from another server.
+     **/
+    public void restore(String username, double elo, int games) {
+        Rating rating = new Rating(username, elo, games);
+        queue.add((ratings, changed) -> {
+            ratings.put(username, rating);
+            changed.accept(rating);
+        });
+    }
+
+    public void shutdown() {
+        writer.interrupt();
+    }
+
+    /* Writer thread */
+
+    private void write() {
+        Map<String, Rating> ratings = new HashMap<>();
+        List<Change> batch = new ArrayList<>();
+        List<Rating> changed = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Change change : batch)
+                    change.apply(ratings, changed::add);
+                snapshot = new Snapshot(ratings);
+                Consumer<Rating> o = observer;
+                for (Rating rating : changed)
+                    o.accept(rating);
+                batch.clear();
+                changed.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down, the changes still queued are dropped
+        }
+    }
+
+    /**
+     * @return 1 if the first player won, 0.5 for a tie, 0 if it lost
+     **/
+    private static double outcome(int score, int opponentScore) {
+        return 0.5 + 0.5 * Integer.compare(score, opponentScore);
+    }
+
+    /**
+     * Move both ratings toward the result, a player with a fixed rating (not NaN) is not changed.
+     **/
+    private static void rate(Map<String, Rating> ratings, Consumer<Rating> changed,
+                             String u1, double fixed1, String u2, double fixed2, double outcome) {
+        Rating r1 = Double.isNaN(fixed1) ? ratings.getOrDefault(u1, new Rating(u1, INITIAL, 0)) : null;
+        Rating r2 = Double.isNaN(fixed2) ? ratings.getOrDefault(u2, new Rating(u2, INITIAL, 0)) : null;
+        double elo1 = r1 != null ? r1.elo() : fixed1;
+        double elo2 = r2 != null ? r2.elo() : fixed2;
+        double expected1 = 1 / (1 + Math.pow(10, (elo2 - elo1) / 400));
+        if (r1 != null)
+            update(ratings, changed, r1, outcome - expected1);
+        if (r2 != null)
+            update(ratings, changed, r2, expected1 - outcome);
+    }
+
+    private static void update(Map<String, Rating> ratings, Consumer<Rating> changed, Rating rating, double surprise) {
+        double k = rating.games() < PROVISIONAL_GAMES ? K_PROVISIONAL : K;
+        Rating updated = new Rating(rating.username(), rating.elo() + k * surprise, rating.games() + 1);
+        ratings.put(updated.username(), updated);
+        changed.accept(updated);
+    }
+}
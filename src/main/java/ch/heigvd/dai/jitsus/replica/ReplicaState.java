@@ -0,0 +1,132 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.replica;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+
+/**
+ * Copy of the state a server needs to be taken over: the sessions that can be resumed, the matches in progress
+ * and the ratings of the players.
+ *
+ * It changes by events, one line of text each:
+ *      SESSION token username                  a session opened
+ *      CLOSE token                             a session is over
+ *      RATING username elo games               new rating of a player
+ *      MATCH id player1 player2                a match started
+ *      STATE id word0 word1                    new state of a match, see GameEngine
+ *      END id                                  a match is over
+ *      RESET                                   a full copy follows
+ *      BEAT                                    nothing changed, the primary is alive
+ *
+ * Not thread safe: the primary changes it under its lock, the standby from its reading thread only.
+ **/
+public class ReplicaState {
+    public record Session(String token, String username) {
+    }
+
+    public record Match(long id, String player1, String player2, long word0, long word1) {
+    }
+
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+    private final Map<Long, Match> matches = new LinkedHashMap<>();
+    private final Map<String, Ratings.Rating> ratings = new LinkedHashMap<>();
+
+    static String session(String token, String username) {
+        return "SESSION " + token + " " + username;
+    }
+
+    static String rating(String username, double elo, int games) {
+        return "RATING " + username + " " + elo + " " + games;
+    }
+
+    static String close(String token) {
+        return "CLOSE " + token;
+    }
+
+    static String match(long id, String player1, String player2) {
+        return "MATCH " + id + " " + player1 + " " + player2;
+    }
+
+    static String state(long id, long word0, long word1) {
+        return "STATE " + id + " " + word0 + " " + word1;
+    }
+
+    static String end(long id) {
+        return "END " + id;
+    }
+
+    /**
+     * Apply an event.
+     *
+     * @return false if the line is not a known event
+     **/
+    public boolean apply(String line) {
+        String[] parts = line.split(" ");
+        try {
+            switch (parts[0]) {
+                case "SESSION" -> sessions.put(parts[1], new Session(parts[1], parts[2]));
+                case "CLOSE" -> sessions.remove(parts[1]);
+                case "RATING" -> ratings.put(parts[1], new Ratings.Rating(parts[1],
+                        Double.parseDouble(parts[2]), Integer.parseInt(parts[3])));
+                case "MATCH" -> {
+                    long id = Long.parseLong(parts[1]);
+                    matches.put(id, new Match(id, parts[2], parts[3], 0, 0));
+                }
+                case "STATE" -> {
+                    long id = Long.parseLong(parts[1]);
+                    Match match = matches.get(id);
+                    if (match != null)
+                        matches.put(id, new Match(id, match.player1(), match.player2(),
+                                Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                }
+                case "END" -> matches.remove(Long.parseLong(parts[1]));
+                case "RESET" -> {
+                    sessions.clear();
+                    matches.clear();
+                    ratings.clear();
+                }
+                case "BEAT" -> {
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Give the events rebuilding this state from an empty one, starting with RESET.
+     **/
+    public void forEachEvent(Consumer<String> action) {
+        action.accept("RESET");
+        for (Ratings.Rating r : ratings.values())
+            action.accept(rating(r.username(), r.elo(), r.games()));
+        for (Session s : sessions.values())
+            action.accept(session(s.token(), s.username()));
+        for (Match m : matches.values()) {
+            action.accept(match(m.id(), m.player1(), m.player2()));
+            action.accept(state(m.id(), m.word0(), m.word1()));
+        }
+    }
+
+    public List<Session> sessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    public List<Match> matches() {
+        return new ArrayList<>(matches.values());
+    }
+
+    public List<Ratings.Rating> ratings() {
+        return new ArrayList<>(ratings.values());
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.replica;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ch.heigvd.dai.jitsus.game.MatchJournal;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+
+/**
+ * Primary side of the replication: streams the changes of the sessions, matches and ratings to a standby server.
+ *
+ * A standby connects to the replication port and first receives a full copy of the state, then every change.
+ * The changes are queued without lock by the threads of the server, so recording one never waits on another
+ * match nor on the network. A single thread applies them to the copy of the state and hands them to the sender
+ * thread, which writes them to the standby. When the standby cannot keep up, its queue is dropped
+ * and a full copy is sent again instead.
+ **/
+public class Replicator implements MatchJournal {
+    // Sent when nothing changed, the standby takes over after Standby.LOST_MS without a line
+    static final long BEAT_MS = 250;
+    private static final int QUEUE_SIZE = 65_536;
+
+    private final ServerSocket serverSocket;
+    // Changes recorded by any thread, not applied yet
+    private final ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<>();
+    private volatile Thread applier = null;
+    // Set while the applier parks, a recording thread then wakes it
+    private volatile boolean idle = false;
+    // Changes to write to the standby
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private volatile boolean running = true;
+    // Guarded by this, shared by the applier and the sender only
+    private final ReplicaState state = new ReplicaState();
+    private Socket standby = null;
+    private boolean resync = false;
+
+    /**
+     * Open the replication port, on the loopback interface.
+     **/
+    public Replicator(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public void start() {
+        applier = new Thread(this::apply, "replication-state");
+        applier.setDaemon(true);
+        applier.start();
+        Thread t = new Thread(this::accept, "replication");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /* Events */
+
+    public void sessionOpened(String token, String username) {
+        record(ReplicaState.session(token, username));
+    }
+
+    public void sessionClosed(String token) {
+        record(ReplicaState.close(token));
+    }
+
+    public void ratingChanged(Ratings.Rating rating) {
+        record(ReplicaState.rating(rating.username(), rating.elo(), rating.games()));
+    }
+
+    @Override
+    public void matchStarted(long id, String player1, String player2) {
+        record(ReplicaState.match(id, player1, player2));
+    }
+
+    @Override
+    public void matchState(long id, long word0, long word1) {
+        record(ReplicaState.state(id, word0, word1));
+    }
+
+    @Override
+    public void matchEnded(long id) {
+        record(ReplicaState.end(id));
+    }
+
+    private void record(String event) {
+        events.offer(event);
+        if (idle)
+            LockSupport.unpark(applier);
+    }
+
+    /**
+     * Apply the recorded changes to the copy of the state, in order, and queue them to the standby.
+     **/
+    private void apply() {
+        while (running) {
+            String event = events.poll();
+            if (event == null) {
+                idle = true;
+                // Checked again once idle is set: a change recorded meanwhile either is seen or wakes the applier
+                if (events.isEmpty())
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(BEAT_MS));
+                idle = false;
+                continue;
+            }
+            synchronized (this) {
+                state.apply(event);
+                if (standby == null || resync) continue;
+                if (!queue.offer(event)) {
+                    // The standby is too slow, it gets a new copy instead of the missed changes
+                    queue.clear();
+                    resync = true;
+                }
+            }
+        }
+    }
+
+    /* Standby connection */
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    if (standby != null)
+                        standby.close();
+                    standby = socket;
+                    queue.clear();
+                    resync = true;
+                }
+                System.out.println("[REPLICATION] Standby connected from " + socket.getRemoteSocketAddress());
+                Thread sender = new Thread(() -> send(socket), "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (running)
+                    System.err.println("[REPLICATION] Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the queued events to the standby, flushing once the queue is empty.
+     **/
+    private void send(Socket socket) {
+        List<String> batch = new ArrayList<>();
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            while (running) {
+                synchronized (this) {
+                    if (standby != socket) return;
+                    if (resync) {
+                        resync = false;
+                        queue.clear();
+                        state.forEachEvent(batch::add);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    String event = queue.poll(BEAT_MS, TimeUnit.MILLISECONDS);
+                    batch.add(event == null ? "BEAT" : event);
+                }
+                queue.drainTo(batch);
+                for (String event : batch) {
+                    out.write(event);
+                    out.write('\n');
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("[REPLICATION] Standby lost: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                if (standby == socket) {
+                    standby = null;
+                    queue.clear();
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(applier);
+        try {
+            serverSocket.close();
+            synchronized (this) {
+                if (standby != null)
+                    standby.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.replica;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Standby side of the replication: keeps a copy of the state of a primary server on the same host,
+ * until the primary is lost and this server takes its place.
+ **/
+public class Standby {
+    // Time without a line from the primary before it is considered lost
+    static final int LOST_MS = 1000;
+    private static final long RETRY_MS = 500;
+
+    private final InetSocketAddress primary;
+    private final ReplicaState state = new ReplicaState();
+    private long lostAt = 0;
+
+    /**
+     * @param port replication port of the primary, on the loopback interface
+     **/
+    public Standby(int port) {
+        this.primary = new InetSocketAddress("localhost", port);
+    }
+
+    /**
+     * Follow the primary until it is lost, waiting for it to be reachable first.
+     *
+     * @return the state of the primary when it was lost
+     **/
+    public ReplicaState follow() throws InterruptedException {
+        while (true) {
+            boolean followed = false;
+            try (Socket socket = new Socket()) {
+                socket.connect(primary, LOST_MS);
+                socket.setSoTimeout(LOST_MS);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                System.out.println("[STANDBY] Following the primary on port " + primary.getPort());
+                followed = true;
+                String line;
+                while ((line = in.readLine()) != null)
+                    state.apply(line);
+                System.out.println("[STANDBY] Primary closed the replication");
+            } catch (SocketTimeoutException e) {
+                if (followed)
+                    System.out.println("[STANDBY] Nothing heard from the primary for " + LOST_MS + " ms");
+            } catch (IOException e) {
+                if (followed)
+                    System.out.println("[STANDBY] Replication lost: " + e.getMessage());
+            }
+            if (followed) {
+                lostAt = System.nanoTime();
+                return state;
+            }
+            Thread.sleep(RETRY_MS);
+        }
+    }
+
+    /**
+     * @return true if the replication port of the primary accepts connections
+     **/
+    public boolean primaryReachable() {
+        try (Socket socket = new Socket()) {
+            socket.connect(primary, LOST_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the time elapsed since the primary was lost, in milliseconds
+     **/
+    public long sinceLostMs() {
+        return (System.nanoTime() - lostAt) / 1_000_000;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+
+/**
+ * Decides which new connections are served, which wait and which are refused.
+ *
+ * A connection is served while there are fewer clients than the current limit.
+ * Otherwise it waits in a bounded queue and is told its position and an estimated wait,
+ * until a client leaves. Only when the queue is full is the connection refused.
+ *
+ * The limit moves between a floor and the maximum of clients, following the measured command latency:
+ * it shrinks by a tenth when the latency goes over the target, and grows back one by one when it is well under.
+ **/
+public class AdmissionQueue {
+    private static final long ADAPT_PERIOD_MS = 1000;
+
+    private final Lobby lobby;
+    private final ServerMetrics metrics;
+    private final Consumer<Socket> starter;
+    private final int maxClients;
+    private final int minClients;
+    private final int capacity;
+    private final long latencyTargetNanos;
+    private final ArrayDeque<Socket> waiting = new ArrayDeque<>();
+    private final ScheduledExecutorService adapter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "admission");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile int limit;
+    // Moving average of the time between two departures, to estimate the wait
+    private double departureIntervalMs = -1;
+    private long lastDeparture = 0;
+
+    /**
+     * @param starter serves an admitted connection
+     * @param maxClients highest number of clients served at once
+     * @param capacity number of connections allowed to wait
+     * @param latencyTargetMs command latency the limit is adjusted to
+     **/
+    public AdmissionQueue(Lobby lobby, ServerMetrics metrics, Consumer<Socket> starter,
+                          int maxClients, int capacity, long latencyTargetMs) {
+        this.lobby = lobby;
+        this.metrics = metrics;
+        this.starter = starter;
+        this.maxClients = maxClients;
+        this.minClients = Math.max(1, maxClients / 10);
+        this.capacity = capacity;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+        this.limit = maxClients;
+    }
+
+    public void start() {
+        adapter.scheduleAtFixedRate(this::adapt, ADAPT_PERIOD_MS, ADAPT_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Serve, queue or refuse a new connection.
+     **/
+    public synchronized void offer(Socket socket) {
+        if (waiting.isEmpty() && lobby.connections() < limit) {
+            starter.accept(socket);
+        } else if (waiting.size() < capacity) {
+            waiting.addLast(socket);
+            notify(socket, "QUEUED " + waiting.size() + " " + eta(waiting.size()));
+        } else {
+            notify(socket, "REJECT SERVER IS FULL");
+            close(socket);
+        }
+    }
+
+    /**
+     * Called once a served client is gone, its slot goes to the first waiting connection.
+     **/
+    public synchronized void release() {
+        long now = System.currentTimeMillis();
+        if (lastDeparture > 0) {
+            long interval = now - lastDeparture;
+            departureIntervalMs = departureIntervalMs < 0 ? interval : 0.8 * departureIntervalMs + 0.2 * interval;
+        }
+        lastDeparture = now;
+        admitWaiting();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private void adapt() {
+        long latency = metrics.takeWindowAverageNanos();
+        if (latency > latencyTargetNanos) {
+            limit = Math.max(minClients, limit - Math.max(1, limit / 10));
+            System.out.println("[SERVER] Command latency " + latency / 1000 + " us, limit lowered to " + limit);
+        } else if (latency < latencyTargetNanos / 2 && limit < maxClients) {
+            limit++;
+            synchronized (this) {
+                admitWaiting();
+            }
+        }
+    }
+
+    private void admitWaiting() {
+        boolean admitted = false;
+        while (!waiting.isEmpty() && lobby.connections() < limit) {
+            Socket socket = waiting.pollFirst();
+            if (socket.isClosed() || !notify(socket, "ADMITTED"))
+                continue;
+            starter.accept(socket);
+            admitted = true;
+        }
+        if (!admitted) return;
+
+        // Tell the others their new position
+        int position = 0;
+        for (Iterator<Socket> it = waiting.iterator(); it.hasNext(); ) {
+            Socket socket = it.next();
+            if (!notify(socket, "QUEUED " + (++position) + " " + eta(position))) {
+                it.remove();
+                position--;
+            }
+        }
+    }
+
+    /**
+     * @return the estimated wait in seconds for a position, -1 while unknown
+     **/
+    private long eta(int position) {
+        if (departureIntervalMs < 0) return -1;
+        return Math.round(position * departureIntervalMs / 1000);
+    }
+
+    private static boolean notify(Socket socket, String message) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            close(socket);
+            return false;
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * The server is draining: the waiting connections are sent to another server.
+     **/
+    public synchronized void drain() {
+        for (Socket socket : waiting) {
+            notify(socket, "SERVER_DRAINING");
+            close(socket);
+        }
+        waiting.clear();
+    }
+
+    public synchronized void shutdown() {
+        adapter.shutdownNow();
+        for (Socket socket : waiting) {
+            notify(socket, "SERVER_SHUTDOWN");
+            close(socket);
+        }
+        waiting.clear();
+    }
+}
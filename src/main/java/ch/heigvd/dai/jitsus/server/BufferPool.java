@@ -0,0 +1,130 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte buffers lent to the connections only while they read or write a line,
+ * so an idle connection holds none.
+ *
+ * The buffers come in size classes, from {@link #MIN_SIZE} bytes to the cap of a connection, each four times
+ * the previous one. A connection never holds more than its cap: a longer line ends the connection.
+ * The budget bounds the bytes of the buffers lent and kept free together: a buffer given back past the budget
+ * is left to the garbage collector, and a buffer lent past it is counted as over budget.
+ **/
+public class BufferPool {
+    public static final int MIN_SIZE = 256;
+
+    private final int connectionCap;
+    private final long budget;
+    // Free buffers of each size class, guarded by the deque
+    private final ArrayDeque<byte[]>[] free;
+    private final AtomicLong lentBytes = new AtomicLong();
+    private final AtomicLong freeBytes = new AtomicLong();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param connectionCap most bytes a connection holds at once, rounded up to a size class
+     * @param budget most bytes kept by the pool for all the connections
+     **/
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int connectionCap, long budget) {
+        int classes = 1;
+        while (sizeOf(classes - 1) < connectionCap)
+            classes++;
+        this.connectionCap = sizeOf(classes - 1);
+        this.budget = budget;
+        this.free = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++)
+            free[i] = new ArrayDeque<>();
+    }
+
+    private static int sizeOf(int sizeClass) {
+        return MIN_SIZE << (2 * sizeClass);
+    }
+
+    /**
+     * @return the size class of the smallest buffer holding size bytes, -1 if it is over the cap
+     **/
+    private int classOf(int size) {
+        for (int i = 0; i < free.length; i++)
+            if (sizeOf(i) >= size)
+                return i;
+        return -1;
+    }
+
+    public int getConnectionCap() {
+        return connectionCap;
+    }
+
+    /**
+     * Lend a buffer, to be given back with {@link #release}.
+     *
+     * @param size bytes needed, at most the cap of a connection
+     * @return a buffer of at least size bytes
+     **/
+    public byte[] borrow(int size) {
+        int sizeClass = classOf(size);
+        if (sizeClass < 0)
+            throw new IllegalArgumentException(size + " bytes is over the cap of a connection");
+        byte[] buffer;
+        synchronized (free[sizeClass]) {
+            buffer = free[sizeClass].pollFirst();
+        }
+        if (buffer != null) {
+            freeBytes.addAndGet(-buffer.length);
+        } else {
+            buffer = new byte[sizeOf(sizeClass)];
+        }
+        if (lentBytes.addAndGet(buffer.length) + freeBytes.get() > budget)
+            overBudget.increment();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer lent by {@link #borrow}, it must not be used anymore.
+     **/
+    public void release(byte[] buffer) {
+        int sizeClass = classOf(buffer.length);
+        long lent = lentBytes.addAndGet(-buffer.length);
+        if (sizeClass < 0 || sizeOf(sizeClass) != buffer.length)
+            return;
+        synchronized (free[sizeClass]) {
+            if (lent + freeBytes.get() + buffer.length > budget)
+                return;
+            free[sizeClass].addFirst(buffer);
+            freeBytes.addAndGet(buffer.length);
+        }
+    }
+
+    /* Metrics */
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return bytes of the buffers lent right now
+     **/
+    public long getLent() {
+        return lentBytes.get();
+    }
+
+    /**
+     * @return bytes of the free buffers kept for the next connections
+     **/
+    public long getFree() {
+        return freeBytes.get();
+    }
+
+    /**
+     * @return number of buffers lent past the budget since the start
+     **/
+    public long getOverBudget() {
+        return overBudget.sum();
+    }
+}
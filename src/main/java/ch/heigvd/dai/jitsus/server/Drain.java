@@ -0,0 +1,67 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Drain of the server before it stops, for a deploy that costs no match:
+ * no new connection, challenge or tournament, the running matches finish
+ * and the idle players are told to connect to another server.
+ *
+ * Asked by SIGTERM, Ctrl-C or the DRAIN command of an admin. DRAIN asked a second time stops the server without waiting.
+ **/
+public class Drain {
+    private final String adminToken;
+    private final Runnable stopAccepting;
+    private volatile boolean draining = false;
+    private volatile boolean forced = false;
+
+    /**
+     * @param adminToken secret of the DRAIN command, null to refuse it
+     * @param stopAccepting closes the socket accepting the clients
+     **/
+    public Drain(String adminToken, Runnable stopAccepting) {
+        this.adminToken = adminToken;
+        this.stopAccepting = stopAccepting;
+    }
+
+    /**
+     * Start draining, or stop waiting for the matches if the drain already started.
+     *
+     * @return false if the drain already started
+     **/
+    public boolean begin() {
+        synchronized (this) {
+            if (draining) {
+                forced = true;
+                return false;
+            }
+            draining = true;
+        }
+        System.out.println("[SERVER] Draining: no new connection nor match, waiting for the running matches");
+        stopAccepting.run();
+        return true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return true if the server stops without waiting for the matches anymore
+     **/
+    public boolean isForced() {
+        return forced;
+    }
+
+    /**
+     * @return true if the token is the one of the admin, compared in constant time
+     **/
+    public boolean allows(String token) {
+        return adminToken != null && MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One timer pinging every connection of the server.
+ *
+ * At each period, every connection is sent PING with the time of the timer, which the client sends back with PONG:
+ * the difference is the round trip time of the connection.
+ * A connection from which nothing was heard during the idle window is reaped,
+ * its peer is dead or too slow to play.
+ *
+ * The timer never writes itself: a PING is written by a pinger thread, so a peer that does not read
+ * only blocks its own PING. A connection whose previous PING is still being written is not pinged again.
+ **/
+public class Heartbeat {
+    /** A connection followed by the heartbeat. **/
+    public interface Connection {
+        /**
+         * @return System.nanoTime() of the last line received on the connection
+         **/
+        long lastHeard();
+
+        /**
+         * Send PING with the given token, may block while the peer does not read.
+         **/
+        void ping(long token);
+
+        /**
+         * Close the connection, nothing was heard from it for too long. Must not block.
+         **/
+        void reap();
+    }
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // Connections whose PING is being written
+    private final Set<Connection> pinging = ConcurrentHashMap.newKeySet();
+    private final long periodMs;
+    private final long idleNanos;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+    // Platform threads: a write blocked inside a synchronized block would pin a virtual one
+    private final ExecutorService pingers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "heartbeat-ping");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param periodMs time between two pings
+     * @param idleMs time without hearing from a connection before it is reaped
+     **/
+    public Heartbeat(long periodMs, long idleMs) {
+        this.periodMs = periodMs;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(this::beat, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(Connection connection) {
+        connections.add(connection);
+    }
+
+    public void remove(Connection connection) {
+        connections.remove(connection);
+    }
+
+    private void beat() {
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+            if (now - connection.lastHeard() > idleNanos) {
+                connections.remove(connection);
+                connection.reap();
+            } else if (pinging.add(connection)) {
+                pingers.execute(() -> {
+                    try {
+                        connection.ping(now);
+                    } finally {
+                        pinging.remove(connection);
+                    }
+                });
+            }
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        pingers.shutdownNow();
+        connections.clear();
+    }
+}
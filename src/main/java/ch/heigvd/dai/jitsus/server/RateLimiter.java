@@ -0,0 +1,64 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Token bucket, written as the generic cell rate algorithm:
+ * instead of a token count, it keeps the theoretical arrival time of the next request.
+ * The whole state is one long updated by compare-and-set, so a check takes no lock and allocates nothing.
+ **/
+public final class RateLimiter {
+    private static final VarHandle TAT;
+
+    static {
+        try {
+            TAT = MethodHandles.lookup().findVarHandle(RateLimiter.class, "tat", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long interval;
+    private final long tolerance;
+    @SuppressWarnings("unused") // only accessed through TAT
+    private volatile long tat = Long.MIN_VALUE;
+
+    /**
+     * @param perSecond tokens added each second, 0 or less for no limit
+     * @param burst tokens the bucket can hold
+     **/
+    public RateLimiter(double perSecond, int burst) {
+        this.interval = perSecond > 0 ? (long) (1_000_000_000L / perSecond) : 0;
+        this.tolerance = interval * Math.max(burst - 1, 0);
+    }
+
+    /**
+     * Take a token if one is left.
+     *
+     * @param now current time given by System.nanoTime()
+     * @return false if the request must be throttled
+     **/
+    public boolean tryAcquire(long now) {
+        if (interval == 0) return true;
+        while (true) {
+            long current = (long) TAT.getVolatile(this);
+            long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            if (start - now > tolerance)
+                return false;
+            if (TAT.compareAndSet(this, current, start + interval))
+                return true;
+        }
+    }
+
+    /**
+     * Give back a token taken by {@link #tryAcquire}, for a request refused by another limiter.
+     **/
+    public void release() {
+        if (interval == 0) return;
+        TAT.getAndAdd(this, -interval);
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+/**
+ * Rates allowed to each connection, in commands per second, 0 for no limit.
+ *
+ * @param commands all commands together
+ * @param burst commands allowed in a row above the rate
+ * @param getPlayers GETPLAYERS commands, which visit the lobby
+ * @param challenges CHALLENGE commands
+ * @param matchMessages MATCH_MSG commands
+ * @param strikes throttled commands allowed in {@link #STRIKE_WINDOW_SECONDS} seconds before disconnecting the client
+ **/
+public record RateLimits(double commands, int burst, double getPlayers, double challenges, double matchMessages, int strikes) {
+    /** Commands of one kind allowed in a row above their rate. **/
+    public static final int COMMAND_BURST = 5;
+    public static final int STRIKE_WINDOW_SECONDS = 10;
+
+    public RateLimiter newCommandLimiter() {
+        return new RateLimiter(commands, burst);
+    }
+
+    public RateLimiter newGetPlayersLimiter() {
+        return new RateLimiter(getPlayers, COMMAND_BURST);
+    }
+
+    public RateLimiter newChallengeLimiter() {
+        return new RateLimiter(challenges, COMMAND_BURST);
+    }
+
+    public RateLimiter newMatchMessageLimiter() {
+        return new RateLimiter(matchMessages, COMMAND_BURST);
+    }
+
+    public RateLimiter newStrikeLimiter() {
+        return strikes > 0 ? new RateLimiter((double) strikes / STRIKE_WINDOW_SECONDS, strikes) : new RateLimiter(0, 0);
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import ch.heigvd.dai.jitsus.cluster.ClusterNode;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+import ch.heigvd.dai.jitsus.replica.Replicator;
+import ch.heigvd.dai.jitsus.tournament.Tournaments;
+
+/**
+ * Everything a connection shares with the rest of the server.
+ *
+ * @param lobby players waiting on this server
+ * @param cluster link to the other servers, null when running alone
+ * @param metrics counters of the server
+ * @param rateLimits commands each connection may send
+ * @param heartbeat timer pinging the connections
+ * @param tournaments tournaments organised on this server
+ * @param sessions sessions that can be resumed after losing their connection
+ * @param ratings ratings of the players, fed by the matches
+ * @param buffers buffers lent to the connections while they read or write
+ * @param drain whether the server is draining before it stops
+ * @param replicator copies the sessions to a standby server, null without standby
+ **/
+public record ServerContext(Lobby lobby, ClusterNode cluster, ServerMetrics metrics, RateLimits rateLimits,
+                            Heartbeat heartbeat, Tournaments tournaments, Sessions sessions, Ratings ratings,
+                            BufferPool buffers, Drain drain, Replicator replicator) {
+}
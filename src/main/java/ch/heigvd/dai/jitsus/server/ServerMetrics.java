@@ -0,0 +1,104 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of the server, shared by every connection.
+ * They only use striped adders, recording a value never blocks a handler.
+ * Other parts of the server publish their own values as gauges, read when the metrics are asked.
+ **/
+public class ServerMetrics {
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder commandNanos = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder pongs = new LongAdder();
+    private final LongAdder rttNanos = new LongAdder();
+    private final AtomicLong windowCommands = new AtomicLong();
+    private final AtomicLong windowNanos = new AtomicLong();
+
+    /**
+     * @param nanos time spent handling one command
+     **/
+    public void recordCommand(long nanos) {
+        commands.increment();
+        commandNanos.add(nanos);
+    }
+
+    /**
+     * A command was refused because its client sends too fast.
+     **/
+    public void recordRateLimited() {
+        rateLimited.increment();
+    }
+
+    /**
+     * @param nanos round trip time of a PING answered by a client
+     **/
+    public void recordRtt(long nanos) {
+        pongs.increment();
+        rttNanos.add(nanos);
+    }
+
+    /**
+     * Publish a value computed on demand.
+     **/
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return every metric as name=value, separated by spaces
+     **/
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("commands=").append(getCommands());
+        sb.append(" rateLimited=").append(rateLimited.sum());
+        sb.append(" commandLatencyUs=").append(String.format(Locale.ROOT, "%.1f", getAverageCommandMicros()));
+        sb.append(" rttUs=").append(String.format(Locale.ROOT, "%.1f", getAverageRttMicros()));
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+            sb.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+        return sb.toString();
+    }
+
+    public long getCommands() {
+        return commands.sum();
+    }
+
+    /**
+     * @return the average time spent per command since the server started, in microseconds
+     **/
+    public double getAverageCommandMicros() {
+        long count = commands.sum();
+        return count == 0 ? 0 : commandNanos.sum() / 1000.0 / count;
+    }
+
+    /**
+     * @return the average round trip time of the clients since the server started, in microseconds
+     **/
+    public double getAverageRttMicros() {
+        long count = pongs.sum();
+        return count == 0 ? 0 : rttNanos.sum() / 1000.0 / count;
+    }
+
+    /**
+     * Average time spent per command since the previous call, meant to be called by a single thread.
+     *
+     * @return the average in nanoseconds, 0 if no command was handled
+     **/
+    public long takeWindowAverageNanos() {
+        long count = commands.sum();
+        long nanos = commandNanos.sum();
+        long deltaCount = count - windowCommands.getAndSet(count);
+        long deltaNanos = nanos - windowNanos.getAndSet(nanos);
+        return deltaCount == 0 ? 0 : deltaNanos / deltaCount;
+    }
+}
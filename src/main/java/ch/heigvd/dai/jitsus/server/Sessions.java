@@ -0,0 +1,84 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import ch.heigvd.dai.jitsus.game.Player;
+
+/**
+ * Sessions of the connected players, by token.
+ *
+ * The token is given at CONNECT. When the connection of a player is lost, its session is kept
+ * during a grace window, and a new connection sending RESUME with the token takes it back.
+ **/
+public class Sessions {
+    private final Map<String, Player> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long graceMs;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sessions");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param graceMs time a lost session waits to be resumed, 0 to never resume
+     **/
+    public Sessions(long graceMs) {
+        this.graceMs = graceMs;
+    }
+
+    public long getGraceMs() {
+        return graceMs;
+    }
+
+    /**
+     * @return the token of a new session of the player
+     **/
+    public String open(Player player) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        sessions.put(token, player);
+        return token;
+    }
+
+    /**
+     * Take back a session opened by another server, under its token.
+     **/
+    public void restore(String token, Player player) {
+        sessions.put(token, player);
+    }
+
+    public Player find(String token) {
+        return sessions.get(token);
+    }
+
+    public void close(String token, Player player) {
+        if (token != null)
+            sessions.remove(token, player);
+    }
+
+    /**
+     * Run a task once the grace window is over.
+     **/
+    public ScheduledFuture<?> afterGrace(Runnable task) {
+        return timer.schedule(task, graceMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.protocol.ClientHandler;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+import ch.heigvd.dai.jitsus.tournament.Tournaments;
+
+/**
+ * Plays matches in memory before the server opens its socket, so the JIT compiles the code of the server
+ * before the first real player meets it.
+ *
+ * Each match connects two scripted clients to real {@link ClientHandler}s through in-memory sockets,
+ * so the commands go through the same parsing, lobby, match and send paths as a network client.
+ * The warmup has its own lobby, sessions, ratings and metrics, nothing of it is left in the server.
+ *
+ * The matches are played in batches. After each one the time spent by the JIT compiler is read:
+ * once a batch compiles for less than {@link #STABLE_SHARE} of its duration, the compiled code is considered stable.
+ **/
+public class Warmup {
+    private static final int BATCHES = 10;
+    private static final double STABLE_SHARE = 0.05;
+    private static final long MATCH_TIMEOUT_S = 30;
+    // Chance to ask a HINT before playing a card
+    private static final double HINT_SHARE = 0.2;
+    private static final RateLimits NO_LIMITS = new RateLimits(0, 0, 0, 0, 0, 0);
+
+    private final int matches;
+    private final Lobby lobby;
+    private final Heartbeat heartbeat;
+    private final Sessions sessions;
+    private final Ratings ratings = new Ratings();
+    private final ServerContext context;
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "warmup");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param matches number of matches to play
+     * @param shards number of partitions of the lobby, as the one of the server
+     * @param graceMs grace of the sessions, as the one of the server
+     * @param buffers buffers of the server, the ones used stay free for its connections
+     **/
+    public Warmup(int matches, int shards, long graceMs, BufferPool buffers) {
+        this.matches = matches;
+        this.lobby = new Lobby(shards);
+        // Never started, the warmup does not need pings
+        this.heartbeat = new Heartbeat(1000, 1000);
+        this.sessions = new Sessions(graceMs);
+        this.context = new ServerContext(lobby, null, new ServerMetrics(), NO_LIMITS, heartbeat,
+                new Tournaments(lobby, ratings), sessions, ratings, buffers,
+                // Never drained
+                new Drain(null, () -> {}), null);
+    }
+
+    /**
+     * Play the matches and report the compilation time of each batch.
+     **/
+    public void run() {
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean measured = jit != null && jit.isCompilationTimeMonitoringSupported();
+        int batchSize = Math.max(1, (matches + BATCHES - 1) / BATCHES);
+        int parallel = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService pairs = Executors.newFixedThreadPool(parallel, r -> {
+            Thread t = new Thread(r, "warmup-match");
+            t.setDaemon(true);
+            return t;
+        });
+
+        System.out.println("[WARMUP] Playing " + matches + " matches before accepting connections");
+        long begin = System.nanoTime();
+        int played = 0;
+        int failed = 0;
+        int stableAfter = -1;
+        try {
+            while (played < matches) {
+                int size = Math.min(batchSize, matches - played);
+                long compileBefore = measured ? jit.getTotalCompilationTime() : 0;
+                long start = System.nanoTime();
+
+                List<Future<?>> batch = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    int id = played + i;
+                    batch.add(pairs.submit(() -> {
+                        match(id);
+                        return null;
+                    }));
+                }
+                for (Future<?> match : batch) {
+                    try {
+                        match.get(MATCH_TIMEOUT_S, TimeUnit.SECONDS);
+                    } catch (ExecutionException | TimeoutException e) {
+                        // Interrupting the match closes its clients
+                        match.cancel(true);
+                        failed++;
+                    }
+                }
+                played += size;
+
+                long wallMs = (System.nanoTime() - start) / 1_000_000;
+                StringBuilder report = new StringBuilder("[WARMUP] ").append(played).append('/').append(matches)
+                        .append(" matches, ").append(wallMs).append(" ms");
+                if (measured) {
+                    long compileMs = jit.getTotalCompilationTime() - compileBefore;
+                    report.append(", JIT ").append(compileMs).append(" ms");
+                    if (compileMs <= STABLE_SHARE * wallMs) {
+                        if (stableAfter < 0) stableAfter = played;
+                    } else {
+                        stableAfter = -1;
+                    }
+                }
+                System.out.println(report);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pairs.shutdownNow();
+            threads.shutdownNow();
+            lobby.shutdown();
+            sessions.shutdown();
+            ratings.shutdown();
+            heartbeat.shutdown();
+        }
+
+        long totalMs = (System.nanoTime() - begin) / 1_000_000;
+        if (failed > 0)
+            System.err.println("[WARMUP] " + failed + " matches did not finish");
+        if (!measured) {
+            System.out.println("[WARMUP] Done in " + totalMs + " ms, the JVM does not report its compilation time");
+        } else if (stableAfter > 0) {
+            System.out.println("[WARMUP] Done in " + totalMs + " ms, JIT stable after " + stableAfter + " matches");
+        } else {
+            System.out.println("[WARMUP] Done in " + totalMs + " ms, JIT still compiling: use a larger --warmup");
+        }
+    }
+
+    /**
+     * One match between two scripted clients: the first one challenges the second one, both play until the end.
+     **/
+    private void match(int id) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        String name = "warm" + id;
+        try (ScriptedClient challenger = connect(name + "a"); ScriptedClient challenged = connect(name + "b")) {
+            Future<?> other = threads.submit(() -> {
+                challenged.play(null);
+                return null;
+            });
+            challenger.send("GETPLAYERS");
+            challenger.send("CHALLENGE " + challenged.name);
+            challenger.play("MATCH_MSG gl hf");
+            other.get(MATCH_TIMEOUT_S, TimeUnit.SECONDS);
+        }
+    }
+
+    private ScriptedClient connect(String name) throws IOException {
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        ClientHandler handler = new ClientHandler(new MemorySocket(toServer, toClient), context);
+        threads.execute(handler);
+
+        ScriptedClient client = new ScriptedClient(name, toServer, toClient);
+        client.send("CONNECT " + name);
+        String line;
+        while ((line = client.in.readLine()) != null && !line.startsWith("WELCOME")) {
+            if (line.startsWith("ERROR"))
+                throw new IOException(name + " not connected: " + line);
+        }
+        return client;
+    }
+
+    /**
+     * Client side of an in-memory connection, answering the server as a player would.
+     **/
+    private static final class ScriptedClient implements AutoCloseable {
+        private final String name;
+        private final Pipe toServer;
+        private final Pipe toClient;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+
+        ScriptedClient(String name, Pipe toServer, Pipe toClient) {
+            this.name = name;
+            this.toServer = toServer;
+            this.toClient = toClient;
+            this.in = new BufferedReader(new InputStreamReader(toClient.input(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(toServer.output(), StandardCharsets.UTF_8));
+        }
+
+        void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        /**
+         * Accept the challenge, play a random card each round and leave at the end of the match.
+         *
+         * @param greeting sent to the opponent at the first round, may be null
+         **/
+        void play(String greeting) throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("CHALLENGE_REQUEST")) {
+                    send("ACCEPT y");
+                } else if (line.startsWith("Please select")) {
+                    if (greeting != null) {
+                        send(greeting);
+                        greeting = null;
+                    }
+                    if (random.nextDouble() < HINT_SHARE)
+                        send("HINT");
+                    send("PLAY " + (1 + random.nextInt(5)));
+                } else if (line.startsWith("MATCH_END") || line.startsWith("CHALLENGE_DECLINED") || line.startsWith("ERROR")) {
+                    send("MMR");
+                    send("DISCONNECT");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            toServer.close();
+            toClient.close();
+        }
+    }
+
+    /**
+     * Socket of the server side, its streams are pipes to a scripted client.
+     **/
+    private static final class MemorySocket extends Socket {
+        private static final SocketAddress ADDRESS = InetSocketAddress.createUnresolved("warmup", 0);
+        private final Pipe in;
+        private final Pipe out;
+        private volatile boolean closed = false;
+
+        MemorySocket(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in.input();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out.output();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Bytes written by one side and read by the other, the writer never waits.
+     **/
+    private static final class Pipe {
+        private byte[] data = new byte[4096];
+        private int start = 0;
+        private int end = 0;
+        private boolean closed = false;
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Pipe closed");
+            if (end + len > data.length) {
+                int size = end - start;
+                byte[] target = size + len > data.length ? new byte[Math.max(2 * data.length, size + len)] : data;
+                System.arraycopy(data, start, target, 0, size);
+                data = target;
+                start = 0;
+                end = size;
+            }
+            System.arraycopy(b, off, data, end, len);
+            end += len;
+            notifyAll();
+        }
+
+        /**
+         * @return the number of bytes read, -1 once the pipe is closed and empty
+         **/
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (start == end && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (start == end) return -1;
+            int n = Math.min(len, end - start);
+            System.arraycopy(data, start, b, off, n);
+            start += n;
+            return n;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return Pipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return len == 0 ? 0 : Pipe.this.read(b, off, len);
+                }
+            };
+        }
+
+        OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    Pipe.this.write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Pipe.this.write(b, off, len);
+                }
+            };
+        }
+    }
+}
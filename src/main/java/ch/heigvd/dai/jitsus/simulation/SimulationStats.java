@@ -0,0 +1,87 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.simulation;
+
+import ch.heigvd.dai.jitsus.game.GameEngine;
+
+/**
+ * Counters gathered while simulating matches.
+ * Each fork/join leaf fills its own instance, then they are merged.
+ **/
+public class SimulationStats {
+    private final long[] outcomes = new long[GameEngine.Outcome.values().length];
+    private final long[] winTypes = new long[GameEngine.WinType.values().length];
+    private long matches;
+    private long rounds;
+    private long roundCapReached;
+    private long cpuNanos;
+
+    void record(GameEngine engine) {
+        matches++;
+        rounds += engine.round();
+        if (engine.round() == GameEngine.MAX_ROUND)
+            roundCapReached++;
+        outcomes[engine.outcome().ordinal()]++;
+    }
+
+    void recordRound(int duel) {
+        winTypes[GameEngine.winType(duel).ordinal()]++;
+    }
+
+    void addCpuNanos(long nanos) {
+        cpuNanos += nanos;
+    }
+
+    SimulationStats merge(SimulationStats other) {
+        for (int i = 0; i < outcomes.length; i++)
+            outcomes[i] += other.outcomes[i];
+        for (int i = 0; i < winTypes.length; i++)
+            winTypes[i] += other.winTypes[i];
+        matches += other.matches;
+        rounds += other.rounds;
+        roundCapReached += other.roundCapReached;
+        cpuNanos += other.cpuNanos;
+        return this;
+    }
+
+    public long getMatches() {
+        return matches;
+    }
+
+    public long getOutcome(GameEngine.Outcome outcome) {
+        return outcomes[outcome.ordinal()];
+    }
+
+    public long getWinType(GameEngine.WinType type) {
+        return winTypes[type.ordinal()];
+    }
+
+    public long getRounds() {
+        return rounds;
+    }
+
+    public double getAverageRounds() {
+        return matches == 0 ? 0 : (double) rounds / matches;
+    }
+
+    public long getRoundCapReached() {
+        return roundCapReached;
+    }
+
+    /**
+     * @return how much more often player1 wins than player2, between -1 and 1.
+     **/
+    public double getFirstPlayerAdvantage() {
+        if (matches == 0) return 0;
+        return (double) (getOutcome(GameEngine.Outcome.PLAYER1) - getOutcome(GameEngine.Outcome.PLAYER2)) / matches;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public double getCpuNanosPerMatch() {
+        return matches == 0 ? 0 : (double) cpuNanos / matches;
+    }
+}
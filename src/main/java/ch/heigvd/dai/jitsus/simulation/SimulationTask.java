@@ -0,0 +1,77 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.simulation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveTask;
+import ch.heigvd.dai.jitsus.bot.BotStrategy;
+import ch.heigvd.dai.jitsus.game.GameEngine;
+
+/**
+ * Plays a range of bot-vs-bot matches, splitting the range in halves
+ * until it is small enough to be played by a single worker.
+ * The random source of a leaf only depends on the seed and on the range,
+ * so a run is reproducible whatever the number of workers.
+ **/
+public class SimulationTask extends RecursiveTask<SimulationStats> {
+    private static final long serialVersionUID = 1L;
+    private static final int LEAF_SIZE = 10_000;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final BotStrategy strategy1;
+    private final BotStrategy strategy2;
+    private final long seed;
+    private final long from;
+    private final long to;
+
+    /**
+     * @param strategy1,strategy2 strategy of each player
+     * @param seed seed of the whole simulation
+     * @param from,to range of matches to play, to excluded
+     **/
+    public SimulationTask(BotStrategy strategy1, BotStrategy strategy2, long seed, long from, long to) {
+        this.strategy1 = strategy1;
+        this.strategy2 = strategy2;
+        this.seed = seed;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected SimulationStats compute() {
+        if (to - from <= LEAF_SIZE)
+            return play();
+
+        long middle = (from + to) >>> 1;
+        SimulationTask left = new SimulationTask(strategy1, strategy2, seed, from, middle);
+        SimulationTask right = new SimulationTask(strategy1, strategy2, seed, middle, to);
+        left.fork();
+        return right.compute().merge(left.join());
+    }
+
+    private SimulationStats play() {
+        boolean cpuTime = THREADS.isCurrentThreadCpuTimeSupported();
+        long start = cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+
+        SimulationStats stats = new SimulationStats();
+        SplittableRandom random = new SplittableRandom(seed + from * 0x9E3779B97F4A7C15L);
+        GameEngine engine = new GameEngine();
+        for (long m = from; m < to; m++) {
+            engine.reset();
+            while (!engine.isOver()) {
+                engine.deal(random);
+                int slot1 = strategy1.choose(engine, 0, random);
+                int slot2 = strategy2.choose(engine, 1, random);
+                stats.recordRound(engine.play(slot1, slot2));
+            }
+            stats.record(engine);
+        }
+
+        long end = cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+        stats.addCpuNanos(end - start);
+        return stats;
+    }
+}
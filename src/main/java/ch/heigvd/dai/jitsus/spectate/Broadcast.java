@@ -0,0 +1,69 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.spectate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Spectators of one match.
+ * Each event is encoded once, and the same bytes are queued to every spectator.
+ * Several threads may publish, the match thread and its chat relay: they publish one at a time,
+ * so that each spectator queue has a single producer and nothing follows the last event.
+ **/
+public class Broadcast {
+    private final CopyOnWriteArrayList<Spectator> spectators = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @return false if the match is already over
+     **/
+    public boolean add(Spectator spectator) {
+        spectator.watch(this);
+        spectators.add(spectator);
+        // Checked after adding: either close() sees the spectator, or the spectator sees the match is over
+        if (closed) {
+            spectators.remove(spectator);
+            spectator.watch(null);
+            return false;
+        }
+        return true;
+    }
+
+    void remove(Spectator spectator) {
+        spectators.remove(spectator);
+    }
+
+    public int size() {
+        return spectators.size();
+    }
+
+    /**
+     * Send an event line to every spectator, without waiting for any of them. Dropped once the match is over.
+     **/
+    public synchronized void publish(String line) {
+        if (!closed)
+            offer(line);
+    }
+
+    /**
+     * Send the last event of the match, the spectators are released.
+     **/
+    public synchronized void close(String line) {
+        closed = true;
+        offer(line);
+        for (Spectator spectator : spectators)
+            spectator.watch(null);
+        spectators.clear();
+    }
+
+    private void offer(String line) {
+        if (spectators.isEmpty()) return;
+        byte[] event = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        for (Spectator spectator : spectators) {
+            if (!spectator.offer(event))
+                spectators.remove(spectator);
+        }
+    }
+}
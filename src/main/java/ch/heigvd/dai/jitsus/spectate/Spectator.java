@@ -0,0 +1,102 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.spectate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection watching a match.
+ *
+ * Events wait in a small bounded queue and are written by a virtual thread, so a slow spectator
+ * never slows the match. When the queue is full, the spectator skips ahead: the late events are dropped
+ * and it is told so with SPECTATE_SKIPPED. A spectator that keeps falling behind is dropped.
+ **/
+public class Spectator {
+    /** Where the events are written, already encoded. **/
+    public interface Viewer {
+        void write(byte[] event) throws IOException;
+    }
+
+    private static final int DEFAULT_BACKLOG = 32;
+    private static final int MAX_SKIPS = 3;
+    private static final byte[] SKIPPED = "SPECTATE_SKIPPED\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DROPPED = "SPECTATE_END TOO SLOW\n".getBytes(StandardCharsets.UTF_8);
+    private static final ExecutorService WRITERS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Viewer viewer;
+    private final ArrayBlockingQueue<byte[]> queue;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile Broadcast broadcast = null;
+    private volatile boolean closed = false;
+    private int skips = 0;
+
+    public Spectator(Viewer viewer) {
+        this(viewer, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * @param backlog events kept while the viewer is writing, before skipping ahead
+     **/
+    public Spectator(Viewer viewer, int backlog) {
+        this.viewer = viewer;
+        this.queue = new ArrayBlockingQueue<>(backlog);
+    }
+
+    /**
+     * Stop watching the match.
+     **/
+    public void leave() {
+        closed = true;
+        Broadcast watched = broadcast;
+        if (watched != null)
+            watched.remove(this);
+    }
+
+    void watch(Broadcast broadcast) {
+        this.broadcast = broadcast;
+    }
+
+    /**
+     * Queue an event, called by one thread at a time: the broadcast publishes under its lock.
+     *
+     * @return false once the spectator is gone
+     **/
+    boolean offer(byte[] event) {
+        if (closed) return false;
+        if (!queue.offer(event)) {
+            queue.clear();
+            if (++skips > MAX_SKIPS) {
+                closed = true;
+                queue.offer(DROPPED);
+            } else {
+                queue.offer(SKIPPED);
+                queue.offer(event);
+            }
+        }
+        if (draining.compareAndSet(false, true))
+            WRITERS.execute(this::drain);
+        return !closed;
+    }
+
+    private void drain() {
+        do {
+            byte[] event;
+            while ((event = queue.poll()) != null) {
+                try {
+                    viewer.write(event);
+                } catch (IOException e) {
+                    closed = true;
+                    queue.clear();
+                }
+            }
+            draining.set(false);
+            // An event may have been queued after the last poll, without starting a writer
+        } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.tournament;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import ch.heigvd.dai.jitsus.game.GameManager;
+import ch.heigvd.dai.jitsus.game.MatchListener;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+import ch.heigvd.dai.jitsus.spectate.Broadcast;
+import ch.heigvd.dai.jitsus.spectate.Spectator;
+
+/**
+ * An event between players of the lobby, seeded by MMR.
+ *
+ * Single elimination: the bracket is a complete binary tree stored in an array, the entrants on its leaves,
+ * with byes for the best seeds when the entrants are not a power of two. A match starts as soon as both
+ * of its previous matches are over, without waiting for the rest of the round.
+ *
+ * Swiss: every round pairs the players with the same number of points who have not met yet,
+ * all the matches of a round run at once and the next round starts after the last one.
+ * A win is worth 2 points, a tie 1, a bye 2.
+ *
+ * From START to their elimination, the entrants are held out of the lobby so nobody else can challenge them.
+ * An entrant who is gone or busy when its match should start loses it.
+ * Every change is pushed to the entrants, each event encoded once.
+ **/
+public class Tournament {
+    public enum Format {
+        ELIMINATION,
+        SWISS
+    }
+
+    public enum State {
+        OPEN,
+        RUNNING,
+        FINISHED
+    }
+
+    private static final int UPDATE_BACKLOG = 256;
+
+    private final String name;
+    private final Format format;
+    private final Player owner;
+    private final Lobby lobby;
+    private final Ratings ratings;
+    private final Runnable onFinish;
+    private final List<Player> entrants = new ArrayList<>();
+    private final Broadcast updates = new Broadcast();
+    // Entrants taken out of the lobby by the tournament
+    private final Set<Player> held = new HashSet<>();
+    private final Map<Player, Integer> seeds = new HashMap<>();
+
+    private State state = State.OPEN;
+    private int round = 0;
+    private int rounds = 0;
+    private int matchesPlayed = 0;
+
+    // Single elimination, node i has children 2i and 2i+1, the leaves start at size
+    private Player[] bracket;
+    private boolean[] decided;
+    private int size;
+
+    // Swiss
+    private final Map<Player, Integer> points = new HashMap<>();
+    private final Map<Player, Set<Player>> met = new HashMap<>();
+    private final Set<Player> byes = new HashSet<>();
+    private int pending = 0;
+
+    /**
+     * @param ratings rates the matches of the tournament as any other match
+     * @param onFinish called once the tournament is over
+     **/
+    Tournament(String name, Format format, Player owner, Lobby lobby, Ratings ratings, Runnable onFinish) {
+        this.name = name;
+        this.format = format;
+        this.owner = owner;
+        this.lobby = lobby;
+        this.ratings = ratings;
+        this.onFinish = onFinish;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public Player getOwner() {
+        return owner;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Enter the tournament, connections are sent its updates.
+     *
+     * @return the number of entrants, -1 if the tournament is started or the player already entered
+     **/
+    public synchronized int join(Player player) {
+        if (state != State.OPEN || entrants.contains(player))
+            return -1;
+        entrants.add(player);
+        if (player instanceof Spectator.Viewer viewer)
+            updates.add(new Spectator(viewer, UPDATE_BACKLOG));
+        return entrants.size();
+    }
+
+    /**
+     * Seed the available entrants and start the first matches.
+     *
+     * @return false if fewer than two entrants are available, the tournament stays open
+     **/
+    public synchronized boolean start() {
+        if (state != State.OPEN) return false;
+        List<Player> ready = new ArrayList<>();
+        for (Player p : entrants)
+            if (hold(p))
+                ready.add(p);
+        if (ready.size() < 2) {
+            releaseAll();
+            return false;
+        }
+
+        ready.sort(Comparator.comparingDouble(Player::getMmr).reversed());
+        for (int i = 0; i < ready.size(); i++)
+            seeds.put(ready.get(i), i);
+        state = State.RUNNING;
+
+        if (format == Format.ELIMINATION) {
+            size = Integer.highestOneBit(ready.size() - 1) << 1;
+            rounds = Integer.numberOfTrailingZeros(size);
+            publish("TOURNAMENT_STARTED " + name + " " + ready.size() + " " + rounds);
+            startElimination(ready);
+        } else {
+            rounds = 32 - Integer.numberOfLeadingZeros(ready.size() - 1);
+            publish("TOURNAMENT_STARTED " + name + " " + ready.size() + " " + rounds);
+            for (Player p : ready) {
+                points.put(p, 0);
+                met.put(p, new HashSet<>());
+            }
+            nextSwissRound();
+        }
+        return true;
+    }
+
+    /**
+     * @return the state of the tournament, then the players still in it with their seed
+     *         (single elimination) or the standings (Swiss), one per line
+     **/
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder("TOURNAMENT ").append(name).append(' ').append(format)
+                .append(' ').append(state).append(" round ").append(round).append('/').append(rounds)
+                .append(" entrants ").append(entrants.size()).append(" matches ").append(matchesPlayed);
+        if (state == State.OPEN) {
+            for (Player p : entrants)
+                sb.append('\n').append(p.getUsername()).append("\t\t").append(p.getMmr());
+        } else if (format == Format.ELIMINATION) {
+            for (Player p : held)
+                sb.append('\n').append(p.getUsername()).append("\t\tseed ").append(seeds.get(p) + 1);
+        } else {
+            for (Player p : standings())
+                sb.append('\n').append(p.getUsername()).append("\t\t").append(points.get(p));
+        }
+        return sb.toString();
+    }
+
+    /* Single elimination */
+
+    private void startElimination(List<Player> seeded) {
+        bracket = new Player[2 * size];
+        decided = new boolean[2 * size];
+        int[] order = seedOrder(size);
+        for (int i = 0; i < size; i++) {
+            bracket[size + i] = order[i] < seeded.size() ? seeded.get(order[i]) : null;
+            decided[size + i] = true;
+        }
+        round = 1;
+        publish("TOURNAMENT_ROUND " + name + " " + round);
+        for (int i = 0; i < size; i += 2)
+            advance(size + i);
+    }
+
+    /**
+     * Seeds of the leaves, so that the best seeds meet as late as possible: 1 against size, 2 against size-1...
+     **/
+    private static int[] seedOrder(int size) {
+        int[] order = {0};
+        while (order.length < size) {
+            int[] next = new int[order.length * 2];
+            for (int i = 0; i < order.length; i++) {
+                next[2 * i] = order[i];
+                next[2 * i + 1] = next.length - 1 - order[i];
+            }
+            order = next;
+        }
+        return order;
+    }
+
+    /**
+     * A node is decided, start the match of its parent if the other child is decided too.
+     **/
+    private void advance(int node) {
+        if (node == 1) {
+            finish(bracket[1]);
+            return;
+        }
+        if (!decided[node ^ 1]) return;
+        int parent = node >> 1;
+        Player a = bracket[2 * parent];
+        Player b = bracket[2 * parent + 1];
+        if (a == null || b == null) {
+            decide(parent, a != null ? a : b); // bye
+            return;
+        }
+
+        int matchRound = rounds - (31 - Integer.numberOfLeadingZeros(parent));
+        if (matchRound > round) {
+            round = matchRound;
+            publish("TOURNAMENT_ROUND " + name + " " + round);
+        }
+        if (!play(a, b, (p1, p2, s1, s2) -> eliminationEnded(parent, p1, p2, s1, s2))) {
+            Player winner = available(a) || !available(b) ? a : b;
+            Player loser = winner == a ? b : a;
+            held.remove(loser);
+            lobby.release(loser);
+            decide(parent, winner);
+        }
+    }
+
+    private synchronized void eliminationEnded(int node, Player p1, Player p2, int score1, int score2) {
+        Player winner = winner(p1, p2, score1, score2);
+        Player loser = winner == p1 ? p2 : p1;
+        matchesPlayed++;
+        publish("TOURNAMENT_RESULT " + name + " " + winner.getUsername() + " " + loser.getUsername()
+                + " " + Math.max(score1, score2) + " " + Math.min(score1, score2));
+        held.remove(loser); // already back in the lobby
+        hold(winner);
+        decide(node, winner);
+    }
+
+    private void decide(int node, Player winner) {
+        bracket[node] = winner;
+        decided[node] = true;
+        advance(node);
+    }
+
+    /* Swiss */
+
+    private void nextSwissRound() {
+        while (state == State.RUNNING) {
+            List<Player> active = new ArrayList<>();
+            for (Player p : standings())
+                if (lobby.find(p.getUsername()) == p)
+                    active.add(p);
+            if (round == rounds || active.size() < 2) {
+                List<Player> standings = standings();
+                finish(standings.isEmpty() ? null : standings.get(0));
+                return;
+            }
+            round++;
+            publish("TOURNAMENT_ROUND " + name + " " + round);
+
+            if (active.size() % 2 == 1) {
+                // The lowest ranked player who had no bye yet
+                Player bye = active.get(active.size() - 1);
+                for (int i = active.size() - 1; i >= 0; i--) {
+                    if (!byes.contains(active.get(i))) {
+                        bye = active.get(i);
+                        break;
+                    }
+                }
+                active.remove(bye);
+                byes.add(bye);
+                points.merge(bye, 2, Integer::sum);
+                publish("TOURNAMENT_BYE " + name + " " + bye.getUsername());
+            }
+
+            while (!active.isEmpty()) {
+                Player a = active.remove(0);
+                int other = 0;
+                for (int i = 0; i < active.size(); i++) {
+                    if (!met.get(a).contains(active.get(i))) {
+                        other = i;
+                        break;
+                    }
+                }
+                Player b = active.remove(other);
+                met.get(a).add(b);
+                met.get(b).add(a);
+                if (play(a, b, this::swissEnded)) {
+                    pending++;
+                } else {
+                    // Forfeit, the missing player loses
+                    boolean aHere = available(a);
+                    recordSwiss(a, b, aHere ? 7 : -7, aHere ? -7 : 7);
+                }
+            }
+            if (pending > 0) return;
+            // Every match of the round was a forfeit, go on right away
+        }
+    }
+
+    private synchronized void swissEnded(Player p1, Player p2, int score1, int score2) {
+        recordSwiss(p1, p2, score1, score2);
+        hold(p1);
+        hold(p2);
+        if (--pending == 0)
+            nextSwissRound();
+    }
+
+    private void recordSwiss(Player p1, Player p2, int score1, int score2) {
+        matchesPlayed++;
+        if (score1 == score2) {
+            points.merge(p1, 1, Integer::sum);
+            points.merge(p2, 1, Integer::sum);
+            publish("TOURNAMENT_RESULT " + name + " " + p1.getUsername() + " " + p2.getUsername()
+                    + " " + score1 + " " + score2 + " TIED");
+            return;
+        }
+        Player winner = score1 > score2 ? p1 : p2;
+        Player loser = winner == p1 ? p2 : p1;
+        points.merge(winner, 2, Integer::sum);
+        publish("TOURNAMENT_RESULT " + name + " " + winner.getUsername() + " " + loser.getUsername()
+                + " " + Math.max(score1, score2) + " " + Math.min(score1, score2));
+    }
+
+    /**
+     * @return the players by points, then by seed
+     **/
+    private List<Player> standings() {
+        List<Player> standings = new ArrayList<>(points.keySet());
+        standings.sort(Comparator.comparingInt((Player p) -> -points.get(p)).thenComparingInt(seeds::get));
+        return standings;
+    }
+
+    /* Common */
+
+    /**
+     * Start a match between two held entrants.
+     *
+     * @return false if one of them is gone or busy, nothing is started
+     **/
+    private boolean play(Player a, Player b, MatchListener listener) {
+        if (!available(a) || !available(b)) {
+            publish("TOURNAMENT_FORFEIT " + name + " " + (available(a) ? b : a).getUsername());
+            return false;
+        }
+        publish("TOURNAMENT_MATCH " + name + " " + round + " " + a.getUsername() + " " + b.getUsername());
+        a.setOpponent(b);
+        b.setOpponent(a);
+        GameManager.start(a, b, ratings.andThen(listener));
+        return true;
+    }
+
+    /**
+     * @return the winner, by score then by seed
+     **/
+    private Player winner(Player p1, Player p2, int score1, int score2) {
+        if (score1 != score2)
+            return score1 > score2 ? p1 : p2;
+        return seeds.get(p1) < seeds.get(p2) ? p1 : p2;
+    }
+
+    private boolean available(Player p) {
+        return lobby.find(p.getUsername()) == p && !p.isInMatch() && !p.isChallenged();
+    }
+
+    /**
+     * Take an entrant out of the lobby until its next match.
+     **/
+    private boolean hold(Player p) {
+        if (lobby.find(p.getUsername()) != p || !lobby.claim(p))
+            return false;
+        held.add(p);
+        return true;
+    }
+
+    private void releaseAll() {
+        for (Player p : held)
+            lobby.release(p);
+        held.clear();
+    }
+
+    private void finish(Player winner) {
+        state = State.FINISHED;
+        releaseAll();
+        updates.close("TOURNAMENT_END " + name + " " + (winner == null ? "NONE" : winner.getUsername()));
+        System.out.println("[TOURNAMENT] " + name + " won by " + (winner == null ? "nobody" : winner.getUsername())
+                + " after " + matchesPlayed + " matches");
+        onFinish.run();
+    }
+
+    private void publish(String update) {
+        updates.publish(update);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * @author Marc Ishi et Arnaut Leyre
+**/
+package ch.heigvd.dai.jitsus.tournament;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import ch.heigvd.dai.jitsus.game.Player;
+import ch.heigvd.dai.jitsus.lobby.Lobby;
+import ch.heigvd.dai.jitsus.rating.Ratings;
+
+/**
+ * Tournaments of the server, by name. A tournament is forgotten once it is over.
+ **/
+public class Tournaments {
+    private final Lobby lobby;
+    private final Ratings ratings;
+    private final Map<String, Tournament> tournaments = new ConcurrentHashMap<>();
+
+    public Tournaments(Lobby lobby, Ratings ratings) {
+        this.lobby = lobby;
+        this.ratings = ratings;
+    }
+
+    /**
+     * @return the new tournament, null if the name is already used
+     **/
+    public Tournament create(String name, Tournament.Format format, Player owner) {
+        Tournament[] created = new Tournament[1];
+        tournaments.computeIfAbsent(name, n -> {
+            created[0] = new Tournament(n, format, owner, lobby, ratings, () -> tournaments.remove(n, created[0]));
+            return created[0];
+        });
+        return created[0];
+    }
+
+    public Tournament find(String name) {
+        return tournaments.get(name);
+    }
+
+    public int size() {
+        return tournaments.size();
+    }
+}